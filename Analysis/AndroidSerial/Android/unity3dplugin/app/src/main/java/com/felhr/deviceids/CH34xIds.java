@@ -17,12 +17,16 @@ public class CH34xIds
 
     public static boolean isDeviceSupported(int vendorId, int productId)
     {
+        return DeviceIds.isDeviceSupported(vendorId, productId, DeviceIds.DRIVER_CH34X);
+    }
+
+    // Packed ids of the table for DeviceIds
+    static int[] getPackedIds()
+    {
+        int[] ids = new int[ch34xDevices.length];
         for(int i=0;i<=ch34xDevices.length-1;i++)
-        {
-            if(ch34xDevices[i].vendorId == vendorId &&ch34xDevices[i].productId == productId )
-                return true;
-        }
-        return false;
+            ids[i] = DeviceIds.packId(ch34xDevices[i].vendorId, ch34xDevices[i].productId);
+        return ids;
     }
 
     private static class ConcreteDevice
@@ -143,14 +143,16 @@ public class CP210xIds
 
     public static boolean isDeviceSupported(int vendorId, int productId)
     {
+        return DeviceIds.isDeviceSupported(vendorId, productId, DeviceIds.DRIVER_CP210X);
+    }
+
+    // Packed ids of the table for DeviceIds
+    static int[] getPackedIds()
+    {
+        int[] ids = new int[cp210xDevices.length];
         for(int i=0;i<=cp210xDevices.length-1;i++)
-        {
-            if(cp210xDevices[i].vendorId == vendorId && cp210xDevices[i].productId == productId )
-            {
-                return true;
-            }
-        }
-        return false;
+            ids[i] = DeviceIds.packId(cp210xDevices[i].vendorId, cp210xDevices[i].productId);
+        return ids;
     }
 
     private static class ConcreteDevice
@@ -8,14 +8,16 @@ public class CP2130Ids
 
     public static boolean isDeviceSupported(int vendorId, int productId)
     {
+        return DeviceIds.isDeviceSupported(vendorId, productId, DeviceIds.DRIVER_CP2130);
+    }
+
+    // Packed ids of the table for DeviceIds
+    static int[] getPackedIds()
+    {
+        int[] ids = new int[cp2130Devices.length];
         for(int i=0;i<=cp2130Devices.length-1;i++)
-        {
-            if(cp2130Devices[i].vendorId == vendorId && cp2130Devices[i].productId == productId )
-            {
-                return true;
-            }
-        }
-        return false;
+            ids[i] = DeviceIds.packId(cp2130Devices[i].vendorId, cp2130Devices[i].productId);
+        return ids;
     }
 
     private static class ConcreteDevice
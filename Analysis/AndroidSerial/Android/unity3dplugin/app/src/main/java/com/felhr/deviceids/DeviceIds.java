@@ -0,0 +1,106 @@
+package com.felhr.deviceids;
+
+/*
+ * Every supported vid/pid pair in one primitive open addressing hash table, built once when the
+ * class is loaded. A key is the packed id (vid << 16) | pid and its value has one bit set for
+ * each driver whose table lists the device, so a probe costs a single lookup.
+ */
+public class DeviceIds
+{
+    // Drivers in the order they are tried, a device listed by several tables gets the first one
+    public static final int DRIVER_NONE = 0;
+    public static final int DRIVER_FTDI = 1;
+    public static final int DRIVER_CP210X = 1 << 1;
+    public static final int DRIVER_PL2303 = 1 << 2;
+    public static final int DRIVER_CH34X = 1 << 3;
+    public static final int DRIVER_CP2130 = 1 << 4;
+
+    private static final int EMPTY = 0; // vid 0 and pid 0 is not a valid device
+
+    private static final int[] keys;
+    private static final int[] values;
+    private static final int mask;
+
+    static
+    {
+        int[][] tables = new int[][]{
+                FTDISioIds.getPackedIds(),
+                CP210xIds.getPackedIds(),
+                PL2303Ids.getPackedIds(),
+                CH34xIds.getPackedIds(),
+                CP2130Ids.getPackedIds()
+        };
+        int[] drivers = new int[]{DRIVER_FTDI, DRIVER_CP210X, DRIVER_PL2303, DRIVER_CH34X, DRIVER_CP2130};
+
+        int count = 0;
+        for(int i=0;i<=tables.length-1;i++)
+            count += tables[i].length;
+
+        // At most half full, so probe sequences stay short
+        int size = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+        keys = new int[size];
+        values = new int[size];
+        mask = size - 1;
+
+        for(int i=0;i<=tables.length-1;i++)
+        {
+            for(int j=0;j<=tables[i].length-1;j++)
+                add(tables[i][j], drivers[i]);
+        }
+    }
+
+    private DeviceIds()
+    {
+
+    }
+
+    public static int packId(int vendorId, int productId)
+    {
+        return ((vendorId & 0xFFFF) << 16) | (productId & 0xFFFF);
+    }
+
+    /*
+     * Get the driver of a device, one of the DRIVER_ constants
+     */
+    public static int getDriver(int vendorId, int productId)
+    {
+        return Integer.lowestOneBit(getDrivers(vendorId, productId));
+    }
+
+    public static boolean isDeviceSupported(int vendorId, int productId, int driver)
+    {
+        return (getDrivers(vendorId, productId) & driver) != 0;
+    }
+
+    // Every driver listing the device as a bit set
+    private static int getDrivers(int vendorId, int productId)
+    {
+        int key = packId(vendorId, productId);
+        if(key == EMPTY)
+            return DRIVER_NONE;
+        for(int i=hash(key);;i=(i+1)&mask)
+        {
+            if(keys[i] == key)
+                return values[i];
+            if(keys[i] == EMPTY)
+                return DRIVER_NONE;
+        }
+    }
+
+    private static void add(int key, int driver)
+    {
+        if(key == EMPTY)
+            return;
+        int i = hash(key);
+        while(keys[i] != EMPTY && keys[i] != key)
+            i = (i + 1) & mask;
+        keys[i] = key;
+        values[i] |= driver;
+    }
+
+    private static int hash(int key)
+    {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
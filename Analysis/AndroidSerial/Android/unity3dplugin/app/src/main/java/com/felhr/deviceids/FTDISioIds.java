@@ -559,14 +559,16 @@ public class FTDISioIds
 
     public static boolean isDeviceSupported(int vendorId, int productId)
     {
+        return DeviceIds.isDeviceSupported(vendorId, productId, DeviceIds.DRIVER_FTDI);
+    }
+
+    // Packed ids of the table for DeviceIds
+    static int[] getPackedIds()
+    {
+        int[] ids = new int[ftdiDevices.length];
         for(int i=0;i<=ftdiDevices.length-1;i++)
-        {
-            if(ftdiDevices[i].vendorId == vendorId && ftdiDevices[i].productId == productId )
-            {
-                return true;
-            }
-        }
-        return false;
+            ids[i] = DeviceIds.packId(ftdiDevices[i].vendorId, ftdiDevices[i].productId);
+        return ids;
     }
 
 
@@ -70,12 +70,16 @@ public class PL2303Ids
 
     public static boolean isDeviceSupported(int vendorId, int productId)
     {
+        return DeviceIds.isDeviceSupported(vendorId, productId, DeviceIds.DRIVER_PL2303);
+    }
+
+    // Packed ids of the table for DeviceIds
+    static int[] getPackedIds()
+    {
+        int[] ids = new int[pl2303Devices.length];
         for(int i=0;i<=pl2303Devices.length-1;i++)
-        {
-            if(pl2303Devices[i].vendorId == vendorId && pl2303Devices[i].productId == productId )
-                return true;
-        }
-        return false;
+            ids[i] = DeviceIds.packId(pl2303Devices[i].vendorId, pl2303Devices[i].productId);
+        return ids;
     }
 
 
@@ -0,0 +1,98 @@
+package com.felhr.usbserial;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Base of the driver threads. Starting waits on a latch instead of spinning on isAlive()
+ * and stopping can be joined with a bounded timeout. No blocking USB call of a read thread
+ * lasts longer than POLL_TIMEOUT, so a stopped read thread ends within that time. A write
+ * thread may be inside a bulk transfer with the device's write timeout, longer than a close
+ * on the main thread may block. It is joined for STOP_TIMEOUT only and otherwise left to
+ * end with its transfer, counted by getLiveThreadCount() until it does.
+ */
+abstract class AbstractWorkerThread extends Thread
+{
+    // Longest time open() waits for a driver thread to start running
+    static final long START_TIMEOUT = 1000;
+    // Longest time close() waits for a driver thread to end once it is out of its blocking USB call
+    static final long STOP_TIMEOUT = 1000;
+    // Longest blocking USB call made by a driver thread
+    static final int POLL_TIMEOUT = 100;
+
+    private static final AtomicInteger liveThreads = new AtomicInteger();
+
+    private final CountDownLatch started = new CountDownLatch(1);
+    private volatile boolean working = true;
+
+    @Override
+    public final void run()
+    {
+        liveThreads.incrementAndGet();
+        started.countDown();
+        try
+        {
+            doRun();
+        } finally
+        {
+            liveThreads.decrementAndGet();
+        }
+    }
+
+    /*
+     * Count of driver threads running in the process
+     */
+    static int getLiveThreadCount()
+    {
+        return liveThreads.get();
+    }
+
+    /*
+     * Body of the thread, it must return soon after isWorking() turns false
+     */
+    abstract void doRun();
+
+    boolean isWorking()
+    {
+        return working;
+    }
+
+    /*
+     * Start the thread and wait until it is running. Returns false if it did not start in time
+     */
+    public boolean startAndWait(long timeoutMillis)
+    {
+        start();
+        try
+        {
+            return started.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public void stopThread()
+    {
+        working = false;
+    }
+
+    /*
+     * Wait up to timeoutMillis for the thread to finish. Returns true if it is not running anymore
+     */
+    public boolean joinThread(long timeoutMillis)
+    {
+        if(Thread.currentThread() == this) // Closed from one of its own callbacks
+            return false;
+        try
+        {
+            join(timeoutMillis);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return !isAlive();
+    }
+}
@@ -8,8 +8,6 @@ import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbRequest;
 import android.util.Log;
 
-import java.util.concurrent.atomic.AtomicBoolean;
-
 public class CP2102SerialDevice extends UsbSerialDevice
 {
     private static final String CLASS_ID = CP2102SerialDevice.class.getSimpleName();
@@ -54,29 +52,40 @@ public class CP2102SerialDevice extends UsbSerialDevice
     private static final int CP210x_XOFF = 0x0000;
     private static final int DEFAULT_BAUDRATE = 9600;
 
+    // Default period of the modem and comm status polling
+    public static final int DEFAULT_STATUS_POLL_PERIOD = 40; // 40ms
+
     /**
      * Flow control variables
      */
-    private boolean rtsCtsEnabled;
-    private boolean dtrDsrEnabled;
+    private volatile boolean rtsCtsEnabled;
+    private volatile boolean dtrDsrEnabled;
     private boolean ctsState;
     private boolean dsrState;
 
-    private UsbCTSCallback ctsCallback;
-    private UsbDSRCallback dsrCallback;
+    private volatile UsbCTSCallback ctsCallback;
+    private volatile UsbDSRCallback dsrCallback;
 
     private UsbInterface mInterface;
     private UsbEndpoint inEndpoint;
     private UsbEndpoint outEndpoint;
     private UsbRequest requestIN;
 
-    private FlowControlThread flowControlThread;
+    private volatile FlowControlThread flowControlThread;
+    private volatile int pollPeriod = DEFAULT_STATUS_POLL_PERIOD;
 
     // COMM_STATUS callbacks
-    private UsbSerialInterface.UsbParityCallback parityCallback;
-    private UsbSerialInterface.UsbBreakCallback breakCallback;
-    private UsbSerialInterface.UsbFrameCallback frameCallback;
-    private UsbSerialInterface.UsbOverrunCallback overrunCallback;
+    private volatile UsbSerialInterface.UsbParityCallback parityCallback;
+    private volatile UsbSerialInterface.UsbBreakCallback breakCallback;
+    private volatile UsbSerialInterface.UsbFrameCallback frameCallback;
+    private volatile UsbSerialInterface.UsbOverrunCallback overrunCallback;
+
+    // Control transfer statistics
+    private final Object controlTransferStats = new Object();
+    private long controlTransferCount;
+    private long windowControlTransfers;
+    private long windowStart = System.nanoTime();
+    private float controlTransfersPerSecond;
 
     public CP2102SerialDevice(UsbDevice device, UsbDeviceConnection connection)
     {
@@ -279,6 +288,7 @@ public class CP2102SerialDevice extends UsbSerialDevice
                 rtsCtsEnabled = false;
                 dtrDsrEnabled = false;
                 setControlCommand(CP210x_SET_FLOW, 0, dataOff);
+                startFlowControlThread(); // Lets it stop polling the modem state
                 break;
             case UsbSerialInterface.FLOW_CONTROL_RTS_CTS:
                 byte[] dataRTSCTS = new byte[]{
@@ -370,18 +380,21 @@ public class CP2102SerialDevice extends UsbSerialDevice
     public void getBreak(UsbBreakCallback breakCallback)
     {
         this.breakCallback = breakCallback;
+        startFlowControlThread();
     }
 
     @Override
     public void getFrame(UsbFrameCallback frameCallback)
     {
         this.frameCallback = frameCallback;
+        startFlowControlThread();
     }
 
     @Override
     public void getOverrun(UsbOverrunCallback overrunCallback)
     {
         this.overrunCallback = overrunCallback;
+        startFlowControlThread();
     }
 
     @Override
@@ -392,93 +405,37 @@ public class CP2102SerialDevice extends UsbSerialDevice
     }
 
     /*
-        Thread to check every X time if flow signals CTS or DSR have been raised
+        Thread polling the modem and comm status of the chip every pollPeriod ms.
+        Each tick issues one control transfer: GET_MDMSTS when CTS or DSR flow control is on,
+        GET_COMM_STATUS when an error callback is set, taking turns when both are needed.
+        While neither is needed it waits without touching endpoint 0.
     */
-    private class FlowControlThread extends Thread
+    private class FlowControlThread extends AbstractWorkerThread
     {
-        private long time = 40; // 40ms
-
         private boolean firstTime;
-
-        private AtomicBoolean keep;
+        private boolean commStatusTurn;
+        private boolean changed;
 
         public FlowControlThread()
         {
-            keep = new AtomicBoolean(true);
             firstTime = true;
         }
 
         @Override
-        public void run()
+        void doRun()
         {
-            while(keep.get())
+            while(isWorking())
             {
-                if(!firstTime) // Only execute the callback when the status change
+                boolean pollModem = needsModemState();
+                boolean pollComm = needsCommStatus();
+
+                if(!pollModem && !pollComm) // Nothing to watch, wait for wakeUp()
                 {
-                    byte[] modemState = pollLines();
-                    byte[] commStatus = getCommStatus();
-
-                    // Check CTS status
-                    if(rtsCtsEnabled)
-                    {
-                        if(ctsState != ((modemState[0] & 0x10) == 0x10))
-                        {
-                            ctsState = !ctsState;
-                            if (ctsCallback != null)
-                                ctsCallback.onCTSChanged(ctsState);
-                        }
-                    }
-
-                    // Check DSR status
-                    if(dtrDsrEnabled)
-                    {
-                        if(dsrState != ((modemState[0] & 0x20) == 0x20))
-                        {
-                            dsrState = !dsrState;
-                            if (dsrCallback != null)
-                                dsrCallback.onDSRChanged(dsrState);
-                        }
-                    }
-
-                    //Check Parity Errors
-                    if(parityCallback != null)
-                    {
-                        if((commStatus[0] & 0x10) == 0x10)
-                        {
-                            parityCallback.onParityError();
-                        }
-                    }
-
-                    // Check frame error
-                    if(frameCallback != null)
-                    {
-                        if((commStatus[0] & 0x02) == 0x02)
-                        {
-                            frameCallback.onFramingError();
-                        }
-                    }
-
-                    // Check break interrupt
-                    if(breakCallback != null)
-                    {
-                        if((commStatus[0] & 0x01) == 0x01)
-                        {
-                            breakCallback.onBreakInterrupt();
-                        }
-                    }
-
-                    // Check Overrun error
-
-                    if(overrunCallback != null)
-                    {
-                        if((commStatus[0] & 0x04) == 0x04
-                                || (commStatus[0] & 0x8) == 0x08)
-                        {
-                            overrunCallback.onOverrunError();
-                        }
-
-                    }
-                }else // Execute the callback always the first time
+                    waitTick(0);
+                    continue;
+                }
+
+                if(firstTime && pollModem) // Execute the callback always the first time
                 {
                     if(rtsCtsEnabled && ctsCallback != null)
                         ctsCallback.onCTSChanged(ctsState);
@@ -488,28 +445,88 @@ public class CP2102SerialDevice extends UsbSerialDevice
 
                     firstTime = false;
                 }
-            }
-        }
 
-        public void stopThread()
-        {
-            keep.set(false);
+                waitTick(pollPeriod);
+                if(!isWorking())
+                    break;
+
+                if(pollModem && (!pollComm || !commStatusTurn))
+                    checkModemState(getModemState());
+                else
+                    checkCommStatus(getCommStatus());
+                commStatusTurn = !commStatusTurn;
+            }
         }
 
-        private byte[] pollLines()
+        // Only execute the callbacks when the status change
+        private void checkModemState(byte[] modemState)
         {
-            synchronized(this)
+            // Check CTS status
+            if(rtsCtsEnabled)
             {
-                try
+                if(ctsState != ((modemState[0] & 0x10) == 0x10))
                 {
-                    wait(time);
-                } catch(InterruptedException e)
+                    ctsState = !ctsState;
+                    if (ctsCallback != null)
+                        ctsCallback.onCTSChanged(ctsState);
+                }
+            }
+
+            // Check DSR status
+            if(dtrDsrEnabled)
+            {
+                if(dsrState != ((modemState[0] & 0x20) == 0x20))
                 {
-                    e.printStackTrace();
+                    dsrState = !dsrState;
+                    if (dsrCallback != null)
+                        dsrCallback.onDSRChanged(dsrState);
                 }
             }
+        }
+
+        private void checkCommStatus(byte[] commStatus)
+        {
+            //Check Parity Errors
+            UsbParityCallback parityCallback = CP2102SerialDevice.this.parityCallback;
+            if(parityCallback != null && (commStatus[0] & 0x10) == 0x10)
+                parityCallback.onParityError();
+
+            // Check frame error
+            UsbFrameCallback frameCallback = CP2102SerialDevice.this.frameCallback;
+            if(frameCallback != null && (commStatus[0] & 0x02) == 0x02)
+                frameCallback.onFramingError();
+
+            // Check break interrupt
+            UsbBreakCallback breakCallback = CP2102SerialDevice.this.breakCallback;
+            if(breakCallback != null && (commStatus[0] & 0x01) == 0x01)
+                breakCallback.onBreakInterrupt();
+
+            // Check Overrun error
+            UsbOverrunCallback overrunCallback = CP2102SerialDevice.this.overrunCallback;
+            if(overrunCallback != null && ((commStatus[0] & 0x04) == 0x04 || (commStatus[0] & 0x8) == 0x08))
+                overrunCallback.onOverrunError();
+        }
+
+        /*
+         * Wake the thread up after the flow control or the callbacks changed
+         */
+        public synchronized void wakeUp()
+        {
+            changed = true;
+            notify();
+        }
 
-            return getModemState();
+        private synchronized void waitTick(long millis)
+        {
+            try
+            {
+                if(!changed)
+                    wait(millis);
+            } catch(InterruptedException e)
+            {
+                // stopFlowControlThread()
+            }
+            changed = false;
         }
     }
 
@@ -560,8 +577,32 @@ public class CP2102SerialDevice extends UsbSerialDevice
 
     private void startFlowControlThread()
     {
-        if(!flowControlThread.isAlive())
-            flowControlThread.start();
+        FlowControlThread thread = flowControlThread;
+        if(thread == null)
+            return;
+        synchronized(thread)
+        {
+            // Not started before anything needs polling
+            if(thread.getState() == Thread.State.NEW && needsStatusPolling())
+                thread.start();
+        }
+        thread.wakeUp();
+    }
+
+    private boolean needsModemState()
+    {
+        return rtsCtsEnabled || dtrDsrEnabled;
+    }
+
+    private boolean needsCommStatus()
+    {
+        return parityCallback != null || frameCallback != null
+                || breakCallback != null || overrunCallback != null;
+    }
+
+    private boolean needsStatusPolling()
+    {
+        return needsModemState() || needsCommStatus();
     }
 
     private void stopFlowControlThread()
@@ -569,10 +610,69 @@ public class CP2102SerialDevice extends UsbSerialDevice
         if(flowControlThread != null)
         {
             flowControlThread.stopThread();
+            flowControlThread.interrupt();
+            flowControlThread.joinThread(AbstractWorkerThread.STOP_TIMEOUT);
             flowControlThread = null;
         }
     }
 
+    /*
+     * Set how often the modem and comm status are polled while flow control or an error callback
+     * needs them. One control transfer is issued per period.
+     */
+    public void setStatusPollPeriod(int millis)
+    {
+        pollPeriod = Math.max(1, millis);
+        FlowControlThread thread = flowControlThread;
+        if(thread != null)
+            thread.wakeUp();
+    }
+
+    public int getStatusPollPeriod()
+    {
+        return pollPeriod;
+    }
+
+    // Control transfers issued on endpoint 0 since the device was created
+    public long getControlTransferCount()
+    {
+        synchronized(controlTransferStats)
+        {
+            return controlTransferCount;
+        }
+    }
+
+    // Control transfers per second over the last full second
+    public float getControlTransfersPerSecond()
+    {
+        synchronized(controlTransferStats)
+        {
+            rollControlTransferWindow(System.nanoTime());
+            return controlTransfersPerSecond;
+        }
+    }
+
+    private void countControlTransfer()
+    {
+        synchronized(controlTransferStats)
+        {
+            controlTransferCount++;
+            windowControlTransfers++;
+            rollControlTransferWindow(System.nanoTime());
+        }
+    }
+
+    private void rollControlTransferWindow(long now)
+    {
+        long elapsed = now - windowStart;
+        if(elapsed >= 1000000000L)
+        {
+            controlTransfersPerSecond = windowControlTransfers * 1e9f / elapsed;
+            windowControlTransfers = 0;
+            windowStart = now;
+        }
+    }
+
     private int setControlCommand(int request, int value, byte[] data)
     {
         int dataLength = 0;
@@ -581,6 +681,7 @@ public class CP2102SerialDevice extends UsbSerialDevice
             dataLength = data.length;
         }
         int response = connection.controlTransfer(CP210x_REQTYPE_HOST2DEVICE, request, value, mInterface.getId(), data, dataLength, USB_TIMEOUT);
+        countControlTransfer();
         Log.i(CLASS_ID,"Control Transfer Response: " + String.valueOf(response));
         return response;
     }
@@ -589,14 +690,15 @@ public class CP2102SerialDevice extends UsbSerialDevice
     {
         byte[] data = new byte[1];
         connection.controlTransfer(CP210x_REQTYPE_DEVICE2HOST, CP210x_GET_MDMSTS, 0, mInterface.getId(), data, 1, USB_TIMEOUT);
+        countControlTransfer();
         return data;
     }
 
     private byte[] getCommStatus()
     {
         byte[] data = new byte[19];
-        int response = connection.controlTransfer(CP210x_REQTYPE_DEVICE2HOST, CP210x_GET_COMM_STATUS, 0, mInterface.getId(), data, 19, USB_TIMEOUT);
-        Log.i(CLASS_ID, "Control Transfer Response (Comm status): " + String.valueOf(response));
+        connection.controlTransfer(CP210x_REQTYPE_DEVICE2HOST, CP210x_GET_COMM_STATUS, 0, mInterface.getId(), data, 19, USB_TIMEOUT);
+        countControlTransfer();
         return data;
     }
 
@@ -604,6 +706,7 @@ public class CP2102SerialDevice extends UsbSerialDevice
     {
         byte[] data = new byte[2];
         int response = connection.controlTransfer(CP210x_REQTYPE_DEVICE2HOST, CP210x_GET_LINE_CTL, 0, mInterface.getId(), data, data.length, USB_TIMEOUT);
+        countControlTransfer();
         Log.i(CLASS_ID,"Control Transfer Response: " + String.valueOf(response));
         return data;
     }
@@ -1,7 +1,5 @@
 package com.felhr.usbserial;
 
-import java.util.Arrays;
-
 import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
@@ -10,7 +8,7 @@ import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbRequest;
 import android.util.Log;
 
-public class FTDISerialDevice extends UsbSerialDevice
+public class FTDISerialDevice extends UsbSerialDevice implements UsbSerialInterface.UsbLatencyTimer
 {
     private static final String CLASS_ID = FTDISerialDevice.class.getSimpleName();
 
@@ -19,8 +17,19 @@ public class FTDISerialDevice extends UsbSerialDevice
     private static final int FTDI_SIO_SET_FLOW_CTRL = 2;
     private static final int FTDI_SIO_SET_BAUD_RATE = 3;
     private static final int FTDI_SIO_SET_DATA = 4;
+    private static final int FTDI_SIO_SET_LATENCY_TIMER = 9;
+    private static final int FTDI_SIO_GET_LATENCY_TIMER = 0x0A;
 
     private static final int FTDI_REQTYPE_HOST2DEVICE = 0x40;
+    private static final int FTDI_REQTYPE_DEVICE2HOST = 0xC0;
+
+    // The chip sends a partly filled packet after this many milliseconds (16 after reset)
+    public static final int FTDI_LATENCY_TIMER_DEFAULT = 16;
+    public static final int FTDI_LATENCY_TIMER_MIN = 1;
+    public static final int FTDI_LATENCY_TIMER_MAX = 255;
+
+    // Full speed parts use 64 byte packets, high speed ones (FT232H, FT2232H...) 512 bytes
+    private static final int FTDI_DEFAULT_PACKET_SIZE = 64;
 
     /**
      *  RTS and DTR values obtained from FreeBSD FTDI driver
@@ -83,6 +92,7 @@ public class FTDISerialDevice extends UsbSerialDevice
     private UsbRequest requestIN;
 
     public FTDIUtilities ftdiUtilities;
+    private byte[] syncBuffer; // Raw data of syncRead() with the FTDI headers
 
     private UsbSerialInterface.UsbParityCallback parityCallback;
     private UsbSerialInterface.UsbFrameCallback frameCallback;
@@ -396,6 +406,23 @@ public class FTDISerialDevice extends UsbSerialDevice
         this.dsrCallback = dsrCallback;
     }
 
+    @Override
+    public boolean setLatencyTimer(int milliseconds)
+    {
+        int value = Math.max(FTDI_LATENCY_TIMER_MIN, Math.min(FTDI_LATENCY_TIMER_MAX, milliseconds));
+        return setControlCommand(FTDI_SIO_SET_LATENCY_TIMER, value, 0, null) >= 0;
+    }
+
+    @Override
+    public int getLatencyTimer()
+    {
+        byte[] data = new byte[1];
+        int response = connection.controlTransfer(FTDI_REQTYPE_DEVICE2HOST, FTDI_SIO_GET_LATENCY_TIMER, 0, mInterface.getId() + 1, data, data.length, USB_TIMEOUT);
+        if(response != 1)
+            return -1;
+        return data[0] & 0xff;
+    }
+
     @Override
     public void getBreak(UsbBreakCallback breakCallback)
     {
@@ -440,6 +467,7 @@ public class FTDISerialDevice extends UsbSerialDevice
                     && endpoint.getDirection() == UsbConstants.USB_DIR_IN)
             {
                 inEndpoint = endpoint;
+                ftdiUtilities.setPacketSize(endpoint.getMaxPacketSize());
             }else
             {
                 outEndpoint = endpoint;
@@ -483,33 +511,74 @@ public class FTDISerialDevice extends UsbSerialDevice
 
     public class FTDIUtilities
     {
+        // Size of the packets of the IN endpoint, each one starts with two status bytes
+        private int packetSize = FTDI_DEFAULT_PACKET_SIZE;
+
+        public void setPacketSize(int packetSize)
+        {
+            if(packetSize > 2)
+                this.packetSize = packetSize;
+        }
+
+        public int getPacketSize()
+        {
+            return packetSize;
+        }
+
         // Special treatment needed to FTDI devices
         public byte[] adaptArray(byte[] ftdiData)
         {
-            int length = ftdiData.length;
-            if(length > 64)
-            {
-                int n = 1;
-                int p = 64;
-                // Precalculate length without FTDI headers
-                while(p < length)
-                {
-                    n++;
-                    p = n*64;
-                }
-                int realLength = length - n*2;
-                byte[] data = new byte[realLength];
-                copyData(ftdiData, data);
-                return data;
-            }else
+            byte[] data = new byte[payloadLength(ftdiData.length)];
+            stripHeaders(ftdiData, ftdiData.length, data, 0);
+            return data;
+        }
+
+        /*
+         * Remove the status bytes of every packet in place.
+         * Returns the count of payload bytes now at the start of data.
+         */
+        public int stripHeaders(byte[] data, int length)
+        {
+            return stripHeaders(data, length, data, 0);
+        }
+
+        /*
+         * Copy the payload of every packet of src into dst from offset onwards, one arraycopy per packet.
+         * src and dst can be the same array when offset is 0. Returns the count of bytes copied.
+         */
+        public int stripHeaders(byte[] src, int length, byte[] dst, int offset)
+        {
+            int j = offset;
+            for(int i=0;i<=length-1;i+=packetSize)
             {
-                return Arrays.copyOfRange(ftdiData, 2, length);
+                int n = Math.min(packetSize - 2, length - i - 2);
+                if(n <= 0)
+                    continue;
+                n = Math.min(n, dst.length - j);
+                if(n <= 0)
+                    break;
+                System.arraycopy(src, i + 2, dst, j, n);
+                j += n;
             }
+            return j - offset;
+        }
+
+        // Length of the data without the status bytes of its packets
+        public int payloadLength(int length)
+        {
+            int packets = (length + packetSize - 1) / packetSize;
+            int last = length - (packets - 1) * packetSize;
+            return Math.max(0, length - packets * 2 + (last < 2 ? 2 - last : 0));
         }
 
         public void checkModemStatus(byte[] data)
         {
-            if(data.length == 0) // Safeguard for zero length arrays
+            checkModemStatus(data, data.length);
+        }
+
+        public void checkModemStatus(byte[] data, int length)
+        {
+            if(length < 2) // Safeguard for zero length arrays
                 return;
 
             boolean cts = (data[0] & 0x10) == 0x10;
@@ -576,31 +645,6 @@ public class FTDISerialDevice extends UsbSerialDevice
                 }
             }
         }
-
-        // Copy data without FTDI headers
-        private void copyData(byte[] src, byte[] dst)
-        {
-            int i = 0; // src index
-            int j = 0; // dst index
-            while(i <= src.length-1)
-            {
-                if(i != 0 && i != 1)
-                {
-                    if(i % 64 == 0 && i >= 64)
-                    {
-                        i += 2;
-                    }else
-                    {
-                        dst[j] = src[i];
-                        i++;
-                        j++;
-                    }
-                }else
-                {
-                    i++;
-                }
-            }
-        }
     }
 
     @Override
@@ -619,13 +663,21 @@ public class FTDISerialDevice extends UsbSerialDevice
             return 0;
         }
 
-        int n = buffer.length / 62;
-        if(buffer.length % 62 != 0)
+        int packetSize = ftdiUtilities.getPacketSize();
+        int n = buffer.length / (packetSize - 2);
+        if(buffer.length % (packetSize - 2) != 0)
         {
             n++;
         }
 
-        byte[] tempBuffer = new byte[buffer.length + n * 2];
+        // Reused between calls, it only grows
+        byte[] tempBuffer = syncBuffer;
+        if(tempBuffer == null || tempBuffer.length < buffer.length + n * 2)
+        {
+            tempBuffer = new byte[buffer.length + n * 2];
+            syncBuffer = tempBuffer;
+        }
+        int tempLength = buffer.length + n * 2;
 
         int readen = 0;
 
@@ -641,19 +693,11 @@ public class FTDISerialDevice extends UsbSerialDevice
                 }
             }
 
-            int numberBytes = connection.bulkTransfer(inEndpoint, tempBuffer, tempBuffer.length, timeLeft);
+            int numberBytes = connection.bulkTransfer(inEndpoint, tempBuffer, tempLength, timeLeft);
 
             if(numberBytes > 2) // Data received
             {
-                byte[] newBuffer = this.ftdiUtilities.adaptArray(tempBuffer);
-                System.arraycopy(newBuffer, 0, buffer, 0, buffer.length);
-
-                int p = numberBytes / 64;
-                if(numberBytes % 64 != 0)
-                {
-                    p++;
-                }
-                readen = numberBytes - p * 2;
+                readen = ftdiUtilities.stripHeaders(tempBuffer, numberBytes, buffer, 0);
             }
         }while(readen <= 0);
 
@@ -3,26 +3,44 @@ package com.felhr.usbserial;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SerialBuffer
 {
     public static final int DEFAULT_READ_BUFFER_SIZE = 16 * 1024;
     public static final int DEFAULT_WRITE_BUFFER_SIZE = 16 * 1024;
+    // The write queue grows on demand up to this size before writes block or fail
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 256 * 1024;
+    // Longest time a write waits for room in a full write queue (0 waits forever)
+    public static final long DEFAULT_WRITE_TIMEOUT = 5000;
     private ByteBuffer readBuffer;
-    private SynchronizedBuffer writeBuffer;
+    private ByteBuffer[] readBuffers; // One buffer per in-flight read request, readBuffers[0] == readBuffer
+    private ByteBuffer[] readViews; // Read-only views of readBuffers handed to UsbReadBufferCallback
+    private WriteQueue writeBuffer;
     private byte[] readBuffer_compatible; // Read buffer for android < 4.2
+    private ByteBuffer readView_compatible;
     private boolean debugging = false;
 
+    // Write overflow accounting. Reads cannot overflow: every read request has its own buffer
+    // and its data is handed to the callback before the request is queued again.
+    private volatile int maxBufferSize = DEFAULT_MAX_BUFFER_SIZE;
+    private final AtomicLong bytesDropped = new AtomicLong();
+    private final AtomicLong truncationCount = new AtomicLong();
+    private volatile int writeHighWaterMark;
+
     public SerialBuffer(boolean version)
     {
-        writeBuffer = new SynchronizedBuffer();
+        writeBuffer = new WriteQueue();
         if(version)
         {
             readBuffer = ByteBuffer.allocate(DEFAULT_READ_BUFFER_SIZE);
+            readBuffers = new ByteBuffer[]{readBuffer};
+            readViews = new ByteBuffer[]{readBuffer.asReadOnlyBuffer()};
 
         }else
         {
             readBuffer_compatible = new byte[DEFAULT_READ_BUFFER_SIZE];
+            readView_compatible = ByteBuffer.wrap(readBuffer_compatible).asReadOnlyBuffer();
         }
     }
 
@@ -34,6 +52,58 @@ public class SerialBuffer
         debugging = value;
     }
 
+    /*
+     * Set the size the write queue may grow to. A value of DEFAULT_WRITE_BUFFER_SIZE keeps
+     * the queue at its initial size.
+     */
+    public void setMaxBufferSize(int maxBufferSize)
+    {
+        this.maxBufferSize = Math.max(maxBufferSize, DEFAULT_WRITE_BUFFER_SIZE);
+    }
+
+    public int getMaxBufferSize()
+    {
+        return maxBufferSize;
+    }
+
+    // Count of written bytes that were dropped (queue full or transfer failed)
+    public long getBytesDropped()
+    {
+        return bytesDropped.get();
+    }
+
+    // Count of writes that were cut short
+    public long getTruncationCount()
+    {
+        return truncationCount.get();
+    }
+
+    // Most bytes held by the write buffer at once
+    public int getWriteHighWaterMark()
+    {
+        return writeHighWaterMark;
+    }
+
+    public void resetStatistics()
+    {
+        bytesDropped.set(0);
+        truncationCount.set(0);
+        writeHighWaterMark = 0;
+    }
+
+    private void countDropped(int length)
+    {
+        bytesDropped.addAndGet(length);
+        truncationCount.incrementAndGet();
+    }
+
+    private static int grownSize(int size, int needed, int max)
+    {
+        while(size < needed && size < max)
+            size <<= 1;
+        return Math.min(size, max);
+    }
+
     public void putReadBuffer(ByteBuffer data)
     {
         synchronized(this)
@@ -56,38 +126,162 @@ public class SerialBuffer
         }
     }
 
+    /*
+     * Make sure there is a read buffer for each of the given count of in-flight requests
+     */
+    public void setReadBufferCount(int count)
+    {
+        synchronized(this)
+        {
+            if(count <= readBuffers.length)
+                return;
+            ByteBuffer[] buffers = Arrays.copyOf(readBuffers, count);
+            ByteBuffer[] views = Arrays.copyOf(readViews, count);
+            for(int i=readBuffers.length;i<=count-1;i++)
+            {
+                buffers[i] = ByteBuffer.allocate(DEFAULT_READ_BUFFER_SIZE);
+                views[i] = buffers[i].asReadOnlyBuffer();
+            }
+            readBuffers = buffers;
+            readViews = views;
+        }
+    }
+
+    public int getReadBufferCount()
+    {
+        synchronized(this)
+        {
+            return readBuffers.length;
+        }
+    }
+
+    public ByteBuffer getReadBuffer(int index)
+    {
+        synchronized(this)
+        {
+            return readBuffers[index];
+        }
+    }
+
 
     public byte[] getDataReceived()
+    {
+        return getDataReceived(0);
+    }
+
+    public byte[] getDataReceived(int index)
     {
         synchronized(this)
         {
-            byte[] dst = new byte[readBuffer.position()];
-            readBuffer.position(0);
-            readBuffer.get(dst, 0, dst.length);
+            ByteBuffer buffer = readBuffers[index];
+            byte[] dst = new byte[buffer.position()];
+            buffer.position(0);
+            buffer.get(dst, 0, dst.length);
             if(debugging)
                 UsbSerialDebugger.printReadLogGet(dst, true);
             return dst;
         }
     }
 
+    /*
+     * Get the received data of a read buffer without copying it. The returned read-only view
+     * is reused and its content changes when the buffer is queued again.
+     */
+    public ByteBuffer getDataReceivedView(int index)
+    {
+        synchronized(this)
+        {
+            ByteBuffer view = readViews[index];
+            view.limit(readBuffers[index].position());
+            view.position(0);
+            if(debugging)
+                UsbSerialDebugger.printReadLogGet(getDataReceivedCopy(view), true);
+            return view;
+        }
+    }
+
+    private static byte[] getDataReceivedCopy(ByteBuffer view)
+    {
+        byte[] dst = new byte[view.remaining()];
+        view.duplicate().get(dst);
+        return dst;
+    }
+
     public void clearReadBuffer()
+    {
+        clearReadBuffer(0);
+    }
+
+    public void clearReadBuffer(int index)
     {
         synchronized(this)
         {
-            readBuffer.clear();
+            readBuffers[index].clear();
         }
     }
 
-    public byte[] getWriteBuffer()
+    /*
+     * Backpressure modes of the write queue when it is full at its maximum size.
+     * WRITE_BLOCK waits for the write thread to make room, WRITE_FAIL rejects the write.
+     */
+    public static final int WRITE_BLOCK = 0;
+    public static final int WRITE_FAIL = 1;
+
+    public void setWriteBackpressure(int mode, long timeoutMillis)
     {
-        return writeBuffer.get();
+        writeBuffer.setBackpressure(mode, timeoutMillis);
+    }
+
+    /*
+     * Queue data for the write thread. Returns false if some of it was dropped because the
+     * queue stayed full (WRITE_FAIL mode or timeout in WRITE_BLOCK mode).
+     */
+    public boolean putWriteBuffer(byte[] data, int offset, int length)
+    {
+        return writeBuffer.put(data, offset, length);
+    }
+
+    /*
+     * Queue the remaining bytes of a buffer for the write thread, see putWriteBuffer(byte[], int, int)
+     */
+    public boolean putWriteBuffer(ByteBuffer data)
+    {
+        return writeBuffer.put(data);
     }
 
     public void putWriteBuffer(byte[]data)
     {
-        writeBuffer.put(data);
+        writeBuffer.put(data, 0, data.length);
+    }
+
+    /*
+     * Write thread side: wait for queued data and move as much as fits into dst.
+     * Returns the count of bytes moved, 0 if the wait was interrupted.
+     * Every call must be followed by writeBufferCompleted() once the transfer is done.
+     */
+    public int takeWriteBuffer(byte[] dst)
+    {
+        return writeBuffer.take(dst);
+    }
+
+    public void writeBufferCompleted(int length, boolean transferred)
+    {
+        writeBuffer.completed(length, transferred);
+    }
+
+    /*
+     * Wait until everything queued before this call has been transferred.
+     * A timeout of 0 waits forever. Returns false on timeout.
+     */
+    public boolean flushWriteBuffer(long timeoutMillis)
+    {
+        return writeBuffer.flush(timeoutMillis);
     }
 
+    public int getWriteBufferPending()
+    {
+        return writeBuffer.pending();
+    }
 
     public void resetWriteBuffer()
     {
@@ -105,59 +299,208 @@ public class SerialBuffer
         return tempBuff;
     }
 
-    private class SynchronizedBuffer
+    public ByteBuffer getDataReceivedCompatibleView(int numberBytes)
+    {
+        readView_compatible.limit(numberBytes);
+        readView_compatible.position(0);
+        return readView_compatible;
+    }
+
+    /*
+     * Ring of bytes waiting for the write thread. Any thread may put data in, puts are never
+     * interleaved with each other and the write thread takes out as much as fits in one transfer,
+     * so small writes are coalesced instead of being sent one bulk transfer each.
+     */
+    private class WriteQueue
     {
-        private byte[] buffer;
-        private int position;
+        private final Object putLock = new Object(); // Keeps the pieces of a large put together
+        private byte[] ring;
+        private int head; // Index of the oldest queued byte
+        private int count; // Queued bytes
+        private long enqueued; // Total bytes accepted
+        private long completed; // Total bytes the write thread is done with
+        private int mode = WRITE_BLOCK;
+        private long timeoutMillis = DEFAULT_WRITE_TIMEOUT;
 
-        public SynchronizedBuffer()
+        public WriteQueue()
         {
-            this.buffer = new byte[DEFAULT_WRITE_BUFFER_SIZE];
-            position = -1;
+            ring = new byte[DEFAULT_WRITE_BUFFER_SIZE];
         }
 
-        public synchronized void put(byte[] src)
+        public synchronized void setBackpressure(int mode, long timeoutMillis)
+        {
+            this.mode = mode;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        public boolean put(byte[] src, int offset, int length)
         {
-            if(position == -1)
-                position = 0;
             if(debugging)
-                UsbSerialDebugger.printLogPut(src, true);
-            if(position + src.length > DEFAULT_WRITE_BUFFER_SIZE - 1) //Checking bounds. Source data does not fit in buffer
-            {
-                if(position < DEFAULT_WRITE_BUFFER_SIZE)
-                    System.arraycopy(src, 0, buffer, position, DEFAULT_WRITE_BUFFER_SIZE - position);
-                position = DEFAULT_WRITE_BUFFER_SIZE;
-                notify();
-            }else // Source data fits in buffer
+                UsbSerialDebugger.printLogPut(Arrays.copyOfRange(src, offset, offset + length), true);
+            return put(src, null, offset, length);
+        }
+
+        // The remaining bytes of src are queued and its position is moved past them
+        public boolean put(ByteBuffer src)
+        {
+            if(debugging)
+                UsbSerialDebugger.printLogPut(getDataReceivedCopy(src), true);
+            return put(null, src, 0, src.remaining());
+        }
+
+        // Either array or buffer is the source of the data
+        private boolean put(byte[] array, ByteBuffer buffer, int offset, int length)
+        {
+            synchronized(putLock)
             {
-                System.arraycopy(src, 0, buffer, position, src.length);
-                position += src.length;
-                notify();
+                synchronized(this)
+                {
+                    ensureCapacity(count + length);
+                    if(mode == WRITE_FAIL && count + length > ring.length)
+                    {
+                        countDropped(length);
+                        return false;
+                    }
+
+                    long deadline = System.currentTimeMillis() + timeoutMillis;
+                    while(length > 0)
+                    {
+                        int space = ring.length - count;
+                        if(space == 0)
+                        {
+                            long wait = timeoutMillis == 0 ? 0 : deadline - System.currentTimeMillis();
+                            if(timeoutMillis != 0 && wait <= 0)
+                            {
+                                countDropped(length);
+                                return false;
+                            }
+                            try
+                            {
+                                wait(wait);
+                            } catch (InterruptedException e)
+                            {
+                                Thread.currentThread().interrupt();
+                                countDropped(length);
+                                return false;
+                            }
+                            continue;
+                        }
+                        int n = Math.min(space, length);
+                        if(buffer != null)
+                            copyIn(buffer, n);
+                        else
+                            copyIn(array, offset, n);
+                        offset += n;
+                        length -= n;
+                    }
+                    return true;
+                }
             }
         }
 
-        public synchronized byte[] get()
+        public synchronized int take(byte[] dst)
         {
-            if(position == -1)
+            while(count == 0)
             {
                 try
                 {
                     wait();
                 } catch (InterruptedException e)
                 {
-                    e.printStackTrace();
+                    return 0;
                 }
             }
-            byte[] dst =  Arrays.copyOfRange(buffer, 0, position);
+            int n = Math.min(count, dst.length);
+            int first = Math.min(n, ring.length - head);
+            System.arraycopy(ring, head, dst, 0, first);
+            System.arraycopy(ring, 0, dst, first, n - first);
+            head = (head + n) % ring.length;
+            count -= n;
+            notifyAll(); // Room for blocked producers
             if(debugging)
-                UsbSerialDebugger.printLogGet(dst, true);
-            position = -1;
-            return dst;
+                UsbSerialDebugger.printLogGet(Arrays.copyOf(dst, n), true);
+            return n;
+        }
+
+        public synchronized void completed(int length, boolean transferred)
+        {
+            if(!transferred)
+                countDropped(length);
+            completed += length;
+            notifyAll(); // Wake flush()
+        }
+
+        public synchronized boolean flush(long timeoutMillis)
+        {
+            long target = enqueued;
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while(completed < target)
+            {
+                long wait = timeoutMillis == 0 ? 0 : deadline - System.currentTimeMillis();
+                if(timeoutMillis != 0 && wait <= 0)
+                    return false;
+                try
+                {
+                    wait(wait);
+                } catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public synchronized int pending()
+        {
+            return (int) (enqueued - completed);
         }
 
         public synchronized void reset()
         {
-            position = -1;
+            completed += count;
+            head = 0;
+            count = 0;
+            notifyAll();
+        }
+
+        private void ensureCapacity(int needed)
+        {
+            if(needed <= ring.length || ring.length >= maxBufferSize)
+                return;
+            byte[] grown = new byte[grownSize(ring.length, needed, maxBufferSize)];
+            int first = Math.min(count, ring.length - head);
+            System.arraycopy(ring, head, grown, 0, first);
+            System.arraycopy(ring, 0, grown, first, count - first);
+            ring = grown;
+            head = 0;
+        }
+
+        private void copyIn(byte[] src, int offset, int length)
+        {
+            int tail = (head + count) % ring.length;
+            int first = Math.min(length, ring.length - tail);
+            System.arraycopy(src, offset, ring, tail, first);
+            System.arraycopy(src, offset + first, ring, 0, length - first);
+            queued(length);
+        }
+
+        private void copyIn(ByteBuffer src, int length)
+        {
+            int tail = (head + count) % ring.length;
+            int first = Math.min(length, ring.length - tail);
+            src.get(ring, tail, first);
+            src.get(ring, 0, length - first);
+            queued(length);
+        }
+
+        private void queued(int length)
+        {
+            count += length;
+            enqueued += length;
+            if(count > writeHighWaterMark)
+                writeHighWaterMark = count;
+            notifyAll(); // Wake the write thread
         }
     }
 
@@ -0,0 +1,209 @@
+package com.felhr.usbserial;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Fixed size ring of received bytes between the usb thread (producer) and a reader.
+ * The producer never waits: it copies what fits and publishes it with one volatile write.
+ * Overflow policy is drop newest: bytes that arrive while the ring is full are discarded and
+ * counted in getBytesDropped(), the bytes already queued are kept in order.
+ * Readers wait on a monitor only when the ring is empty.
+ */
+public class SerialByteRing
+{
+    public static final int DEFAULT_CAPACITY = 16 * 1024;
+
+    private final byte[] ring;
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong(); // Written by the producer only
+    private volatile long head; // Written by readers only, under readLock
+
+    private final Object readLock = new Object();
+    private final Object signal = new Object();
+    private volatile boolean waiting;
+    private volatile boolean closed;
+
+    private final AtomicLong bytesDropped = new AtomicLong();
+
+    public SerialByteRing()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    // The capacity is rounded up to the next power of two
+    public SerialByteRing(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        ring = new byte[size];
+        mask = size - 1;
+    }
+
+    public int capacity()
+    {
+        return ring.length;
+    }
+
+    public int available()
+    {
+        return (int) (tail.get() - head);
+    }
+
+    public long getBytesDropped()
+    {
+        return bytesDropped.get();
+    }
+
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    /*
+     * Producer side: queue the remaining bytes of src and move its position to its limit.
+     * Returns the count of bytes queued, the rest was dropped.
+     */
+    public int offer(ByteBuffer src)
+    {
+        int length = src.remaining();
+        int n = Math.min(length, ring.length - available());
+        long t = tail.get();
+        int index = (int) t & mask;
+        int first = Math.min(n, ring.length - index);
+        ByteBuffer part = src.duplicate();
+        part.get(ring, index, first);
+        part.get(ring, 0, n - first);
+        src.position(src.limit());
+        publish(t + n, length - n);
+        return n;
+    }
+
+    public int offer(byte[] src, int offset, int length)
+    {
+        int n = Math.min(length, ring.length - available());
+        long t = tail.get();
+        int index = (int) t & mask;
+        int first = Math.min(n, ring.length - index);
+        System.arraycopy(src, offset, ring, index, first);
+        System.arraycopy(src, offset + first, ring, 0, n - first);
+        publish(t + n, length - n);
+        return n;
+    }
+
+    private void publish(long newTail, int dropped)
+    {
+        if(dropped > 0)
+            bytesDropped.addAndGet(dropped);
+        tail.set(newTail);
+        if(waiting)
+        {
+            synchronized(signal)
+            {
+                signal.notifyAll();
+            }
+        }
+    }
+
+    /*
+     * Read one byte, waiting for it if the ring is empty. Returns -1 once the ring is closed.
+     */
+    public int read()
+    {
+        synchronized(readLock)
+        {
+            if(!awaitData())
+                return -1;
+            long h = head;
+            int value = ring[(int) h & mask] & 0xff;
+            head = h + 1;
+            return value;
+        }
+    }
+
+    /*
+     * Read up to length bytes, waiting only until at least one is available.
+     * Returns the count of bytes read or -1 once the ring is closed.
+     */
+    public int read(byte[] dst, int offset, int length)
+    {
+        if(length == 0)
+            return 0;
+        synchronized(readLock)
+        {
+            if(!awaitData())
+                return -1;
+            long h = head;
+            int n = Math.min(length, (int) (tail.get() - h));
+            int index = (int) h & mask;
+            int first = Math.min(n, ring.length - index);
+            System.arraycopy(ring, index, dst, offset, first);
+            System.arraycopy(ring, 0, dst, offset + first, n - first);
+            head = h + n;
+            return n;
+        }
+    }
+
+    /*
+     * Read as many bytes as fit into dst from its position onwards. When block is true waits
+     * until at least one byte is available. Returns the count of bytes read or -1 once closed.
+     */
+    public int read(ByteBuffer dst, boolean block)
+    {
+        if(!dst.hasRemaining())
+            return 0;
+        synchronized(readLock)
+        {
+            if(closed)
+                return -1;
+            if(!block && available() == 0)
+                return 0;
+            if(!awaitData())
+                return -1;
+            long h = head;
+            int n = Math.min(dst.remaining(), (int) (tail.get() - h));
+            int index = (int) h & mask;
+            int first = Math.min(n, ring.length - index);
+            dst.put(ring, index, first);
+            dst.put(ring, 0, n - first);
+            head = h + n;
+            return n;
+        }
+    }
+
+    // Wakes every waiting reader, reads return -1 from now on
+    public void close()
+    {
+        closed = true;
+        synchronized(signal)
+        {
+            signal.notifyAll();
+        }
+    }
+
+    // Called with readLock held. Returns false if the ring was closed
+    private boolean awaitData()
+    {
+        if(closed)
+            return false;
+        if(tail.get() != head)
+            return true;
+        waiting = true;
+        try
+        {
+            synchronized(signal)
+            {
+                while(tail.get() == head && !closed)
+                    signal.wait();
+            }
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally
+        {
+            waiting = false;
+        }
+        return !closed;
+    }
+}
@@ -1,60 +1,70 @@
 package com.felhr.usbserial;
 
 import java.io.InputStream;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.nio.ByteBuffer;
 
-public class SerialInputStream extends InputStream implements UsbSerialInterface.UsbReadCallback
+/*
+ * InputStream over the received data of a serial device. The usb thread copies the data into a
+ * SerialByteRing and never waits for the reader: when the ring is full the newest bytes are
+ * dropped and counted in getBytesDropped(). Size the ring to cover the longest reader stall.
+ */
+public class SerialInputStream extends InputStream implements UsbSerialInterface.UsbReadCallback,
+        UsbSerialInterface.UsbReadBufferCallback
 {
     protected final UsbSerialInterface device;
-    protected ArrayBlockingQueue data = new ArrayBlockingQueue<Integer>(256);
-    protected volatile boolean is_open;
+    protected final SerialByteRing data;
 
     public SerialInputStream(UsbSerialInterface device)
+    {
+        this(device, SerialByteRing.DEFAULT_CAPACITY);
+    }
+
+    public SerialInputStream(UsbSerialInterface device, int bufferSize)
     {
         this.device = device;
-        is_open = true;
-        device.read(this);
+        this.data = new SerialByteRing(bufferSize);
+        device.readBuffer(this);
     }
 
     @Override
     public int read()
     {
-        while (is_open)
-        {
-            try
-            {
-                return (Integer)data.take();
-            } catch (InterruptedException e)
-            {
-                // ignore, will be retried by while loop
-            }
-        }
-        return -1;
+        return data.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+    {
+        if(off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        return data.read(b, off, len);
+    }
+
+    @Override
+    public int available()
+    {
+        return data.available();
+    }
+
+    // Bytes lost because the reader did not keep up
+    public long getBytesDropped()
+    {
+        return data.getBytesDropped();
     }
 
+    @Override
     public void close()
     {
-        is_open = false;
-        try
-        {
-            data.put(-1);
-        } catch (InterruptedException e)
-        {
-            e.printStackTrace();
-        }
+        data.close();
+    }
+
+    public void onReceivedData(ByteBuffer new_data)
+    {
+        data.offer(new_data);
     }
 
     public void onReceivedData(byte[] new_data)
     {
-        for (byte b : new_data)
-        {
-            try
-            {
-                data.put(((int)b) & 0xff);
-            } catch (InterruptedException e)
-            {
-                // ignore, possibly losing bytes when buffer is full
-            }
-        }
+        data.offer(new_data, 0, new_data.length);
     }
 }
@@ -1,26 +1,106 @@
 package com.felhr.usbserial;
 
+import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Arrays;
 
+/*
+ * Buffered OutputStream over a serial device. Written bytes are collected in a buffer and handed
+ * to the device in one write when the buffer is full or flush() is called, so nothing reaches the
+ * device before a flush. Writes larger than the buffer go to the device directly.
+ */
 public class SerialOutputStream extends OutputStream
 {
+    public static final int DEFAULT_BUFFER_SIZE = 512;
+
     protected final UsbSerialInterface device;
+    private final byte[] buffer;
+    private int count;
 
     public SerialOutputStream(UsbSerialInterface device)
     {
+        this(device, DEFAULT_BUFFER_SIZE);
+    }
+
+    public SerialOutputStream(UsbSerialInterface device, int bufferSize)
+    {
+        if(bufferSize <= 0)
+            throw new IllegalArgumentException("Buffer size must be positive");
         this.device = device;
+        this.buffer = new byte[bufferSize];
     }
 
     @Override
-    public void write(int b)
+    public synchronized void write(int b) throws IOException
     {
-        device.write(new byte[] { (byte)b });
+        if(count == buffer.length)
+            flushBuffer();
+        buffer[count++] = (byte) b;
     }
 
     @Override
-    public void write(byte[] b)
+    public void write(byte[] b) throws IOException
+    {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException
+    {
+        if(off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        if(len >= buffer.length)
+        {
+            flushBuffer();
+            writeDevice(b, off, len);
+            return;
+        }
+        if(len > buffer.length - count)
+            flushBuffer();
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    /*
+     * Hand the buffered bytes to the device. They are sent by its write thread without waiting here
+     */
+    @Override
+    public synchronized void flush() throws IOException
+    {
+        flushBuffer();
+    }
+
+    /*
+     * Hand the buffered bytes to the device and wait until everything written so far has been
+     * transferred. A timeout of 0 waits forever. Returns false on timeout.
+     */
+    public boolean flush(long timeoutMillis) throws IOException
+    {
+        synchronized(this)
+        {
+            flushBuffer();
+        }
+        return device.flush(timeoutMillis);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        flush();
+    }
+
+    private void flushBuffer() throws IOException
+    {
+        if(count > 0)
+        {
+            int length = count;
+            count = 0;
+            writeDevice(buffer, 0, length);
+        }
+    }
+
+    private void writeDevice(byte[] b, int off, int len) throws IOException
     {
-        device.write(b);
+        if(!device.write(b, off, len))
+            throw new IOException("Serial write queue is full, data was dropped");
     }
 }
@@ -0,0 +1,110 @@
+package com.felhr.usbserial;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ScatteringByteChannel;
+
+/*
+ * ScatteringByteChannel over the received data of a serial device. The usb thread copies each
+ * read-only view of the driver's buffers straight into a SerialByteRing (no array per chunk) and
+ * read() moves the bytes from the ring into the caller's buffers, e.g. for FileChannel.transferFrom().
+ * The channel takes over the read callback of the device. When the ring is full the newest bytes
+ * are dropped and counted in getBytesDropped().
+ */
+public class SerialReadableChannel implements ScatteringByteChannel, UsbSerialInterface.UsbReadBufferCallback
+{
+    protected final UsbSerialInterface device;
+    private final SerialByteRing data;
+    private volatile boolean blocking = true;
+
+    public SerialReadableChannel(UsbSerialInterface device)
+    {
+        this(device, SerialByteRing.DEFAULT_CAPACITY);
+    }
+
+    public SerialReadableChannel(UsbSerialInterface device, int bufferSize)
+    {
+        this.device = device;
+        this.data = new SerialByteRing(bufferSize);
+        device.readBuffer(this);
+    }
+
+    /*
+     * In blocking mode (default) read() waits until at least one byte is available,
+     * otherwise it returns 0 at once when there is nothing to read
+     */
+    public void setBlocking(boolean blocking)
+    {
+        this.blocking = blocking;
+    }
+
+    public boolean isBlocking()
+    {
+        return blocking;
+    }
+
+    public int available()
+    {
+        return data.available();
+    }
+
+    public long getBytesDropped()
+    {
+        return data.getBytesDropped();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        if(!isOpen())
+            throw new ClosedChannelException();
+        return data.read(dst, blocking);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+    {
+        if(offset < 0 || length < 0 || offset > dsts.length - length)
+            throw new IndexOutOfBoundsException();
+        if(!isOpen())
+            throw new ClosedChannelException();
+        long total = 0;
+        for(int i=offset;i<=offset+length-1;i++)
+        {
+            // Only the first read may wait, the rest take what is already there
+            int n = data.read(dsts[i], blocking && total == 0);
+            if(n < 0)
+                return total > 0 ? total : -1;
+            total += n;
+            if(dsts[i].hasRemaining() && data.available() == 0)
+                break;
+        }
+        return total;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts) throws IOException
+    {
+        return read(dsts, 0, dsts.length);
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return !data.isClosed();
+    }
+
+    // Wakes blocked readers, the device itself is not closed
+    @Override
+    public void close()
+    {
+        data.close();
+    }
+
+    @Override
+    public void onReceivedData(ByteBuffer received)
+    {
+        data.offer(received);
+    }
+}
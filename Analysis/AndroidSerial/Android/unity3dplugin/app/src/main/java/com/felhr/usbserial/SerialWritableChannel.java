@@ -0,0 +1,77 @@
+package com.felhr.usbserial;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+
+/*
+ * GatheringByteChannel over the write queue of a serial device. The bytes of each buffer are
+ * copied straight into the queue, heap and direct buffers alike, and the write thread sends them
+ * in as few bulk transfers as possible. write() returns the count of bytes queued, which is less
+ * than requested only when the queue stayed full (see UsbSerialDevice.setWriteBackpressure).
+ */
+public class SerialWritableChannel implements GatheringByteChannel
+{
+    protected final UsbSerialDevice device;
+    private volatile boolean open = true;
+
+    public SerialWritableChannel(UsbSerialDevice device)
+    {
+        this.device = device;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+        if(!open)
+            throw new ClosedChannelException();
+        int position = src.position();
+        device.write(src);
+        return src.position() - position;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+    {
+        if(offset < 0 || length < 0 || offset > srcs.length - length)
+            throw new IndexOutOfBoundsException();
+        if(!open)
+            throw new ClosedChannelException();
+        long total = 0;
+        for(int i=offset;i<=offset+length-1;i++)
+        {
+            total += write(srcs[i]);
+            if(srcs[i].hasRemaining()) // Queue full, the rest would not fit either
+                break;
+        }
+        return total;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException
+    {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /*
+     * Wait until everything written so far has been transferred. A timeout of 0 waits forever
+     */
+    public boolean flush(long timeoutMillis)
+    {
+        return device.flush(timeoutMillis);
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    // The device itself is not closed
+    @Override
+    public void close()
+    {
+        open = false;
+    }
+}
@@ -1,11 +1,9 @@
 package com.felhr.usbserial;
 
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeoutException;
 
-import com.felhr.deviceids.CH34xIds;
-import com.felhr.deviceids.CP210xIds;
-import com.felhr.deviceids.FTDISioIds;
-import com.felhr.deviceids.PL2303Ids;
+import com.felhr.deviceids.DeviceIds;
 
 import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
@@ -24,6 +22,13 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
 
     protected static final int USB_TIMEOUT = 5000;
 
+    // Count of read requests kept queued on the IN endpoint at the same time
+    public static final int DEFAULT_READ_PIPELINE_DEPTH = 1;
+    public static final int MAX_READ_PIPELINE_DEPTH = 16;
+
+    // Largest bulk transfer the write thread sends, rounded down to whole max size packets
+    protected static final int WRITE_TRANSFER_SIZE = 16 * 1024;
+
     protected SerialBuffer serialBuffer;
 
     protected WorkerThread workerThread;
@@ -36,6 +41,19 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
 
     protected boolean asyncMode;
 
+    private int readPipelineDepth = DEFAULT_READ_PIPELINE_DEPTH;
+
+    // Requested and effective (whole packets of the IN endpoint) size of one read transfer
+    private int readTransferSize = SerialBuffer.DEFAULT_READ_BUFFER_SIZE;
+    private volatile int readTransferLength = SerialBuffer.DEFAULT_READ_BUFFER_SIZE;
+    private int inPacketSize;
+
+    private UsbWriteCallback writeCallback;
+
+    // Time the last thread restart took, see getThreadStartNanos()
+    private volatile long threadStartNanos;
+    private volatile long threadStopNanos;
+
     // Get Android version if version < 4.3 It is not going to be asynchronous read operations
     static
     {
@@ -68,18 +86,22 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         int vid = device.getVendorId();
         int pid = device.getProductId();
 
-        if(FTDISioIds.isDeviceSupported(vid, pid))
-            return new FTDISerialDevice(device, connection, iface);
-        else if(CP210xIds.isDeviceSupported(vid, pid))
-            return new CP2102SerialDevice(device, connection, iface);
-        else if(PL2303Ids.isDeviceSupported(vid, pid))
-            return new PL2303SerialDevice(device, connection, iface);
-        else if(CH34xIds.isDeviceSupported(vid, pid))
-            return new CH34xSerialDevice(device, connection, iface);
-        else if(isCdcDevice(device))
-            return new CDCSerialDevice(device, connection, iface);
-        else
-            return null;
+        switch(DeviceIds.getDriver(vid, pid))
+        {
+            case DeviceIds.DRIVER_FTDI:
+                return new FTDISerialDevice(device, connection, iface);
+            case DeviceIds.DRIVER_CP210X:
+                return new CP2102SerialDevice(device, connection, iface);
+            case DeviceIds.DRIVER_PL2303:
+                return new PL2303SerialDevice(device, connection, iface);
+            case DeviceIds.DRIVER_CH34X:
+                return new CH34xSerialDevice(device, connection, iface);
+            default:
+                if(isCdcDevice(device))
+                    return new CDCSerialDevice(device, connection, iface);
+                else
+                    return null;
+        }
     }
 
     public static boolean isSupported(UsbDevice device)
@@ -87,18 +109,16 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         int vid = device.getVendorId();
         int pid = device.getProductId();
 
-        if(FTDISioIds.isDeviceSupported(vid, pid))
-            return true;
-        else if(CP210xIds.isDeviceSupported(vid, pid))
-            return true;
-        else if(PL2303Ids.isDeviceSupported(vid, pid))
-            return true;
-        else if(CH34xIds.isDeviceSupported(vid, pid))
-            return true;
-        else if(isCdcDevice(device))
-            return true;
-        else
-            return false;
+        switch(DeviceIds.getDriver(vid, pid))
+        {
+            case DeviceIds.DRIVER_FTDI:
+            case DeviceIds.DRIVER_CP210X:
+            case DeviceIds.DRIVER_PL2303:
+            case DeviceIds.DRIVER_CH34X:
+                return true;
+            default:
+                return isCdcDevice(device);
+        }
     }
 
     // Common Usb Serial Operations (I/O Asynchronous)
@@ -112,6 +132,78 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
             serialBuffer.putWriteBuffer(buffer);
     }
 
+    @Override
+    public boolean write(byte[] buffer, int offset, int length)
+    {
+        if(!asyncMode)
+            return false;
+        return serialBuffer.putWriteBuffer(buffer, offset, length);
+    }
+
+    /*
+     * Queue the remaining bytes of a buffer without copying them into an array first.
+     * The position of the buffer is moved past the queued bytes.
+     */
+    public boolean write(ByteBuffer buffer)
+    {
+        if(!asyncMode)
+            return false;
+        return serialBuffer.putWriteBuffer(buffer);
+    }
+
+    @Override
+    public boolean flush(long timeoutMillis)
+    {
+        if(!asyncMode)
+            return true;
+        return serialBuffer.flushWriteBuffer(timeoutMillis);
+    }
+
+    /*
+     * What write() does when the write queue is full: SerialBuffer.WRITE_BLOCK waits up to
+     * timeoutMillis for room (0 waits forever), SerialBuffer.WRITE_FAIL drops the data at once.
+     * Dropped bytes are counted in getBytesDropped().
+     */
+    public void setWriteBackpressure(int mode, long timeoutMillis)
+    {
+        serialBuffer.setWriteBackpressure(mode, timeoutMillis);
+    }
+
+    // Time the last restart of a driver thread waited for the thread to run
+    public long getThreadStartNanos()
+    {
+        return threadStartNanos;
+    }
+
+    // Time the last kill of a driver thread waited for the thread to end
+    public long getThreadStopNanos()
+    {
+        return threadStopNanos;
+    }
+
+    /*
+     * Count of driver threads (read, write and worker threads of every open device) running in
+     * the process. It should drop back after close(), a growing count means threads are leaking.
+     */
+    public static int getLiveThreadCount()
+    {
+        return AbstractWorkerThread.getLiveThreadCount();
+    }
+
+    // Bytes written but not transferred yet
+    public int getWritePending()
+    {
+        return serialBuffer.getWriteBufferPending();
+    }
+
+    // Called on the write thread after every bulk transfer
+    public void setWriteCallback(UsbWriteCallback writeCallback)
+    {
+        this.writeCallback = writeCallback;
+        if(writeThread != null)
+            writeThread.setCallback(writeCallback);
+    }
+
     @Override
     public int read(UsbReadCallback mCallback)
     {
@@ -121,7 +213,7 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         if(mr1Version)
         {
             workerThread.setCallback(mCallback);
-            workerThread.getUsbRequest().queue(serialBuffer.getReadBuffer(), SerialBuffer.DEFAULT_READ_BUFFER_SIZE);
+            workerThread.queueRequests();
         }else
         {
             readThread.setCallback(mCallback);
@@ -130,6 +222,23 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         return 0;
     }
 
+    @Override
+    public int readBuffer(UsbReadBufferCallback mCallback)
+    {
+        if(!asyncMode)
+            return -1;
+
+        if(mr1Version)
+        {
+            workerThread.setBufferCallback(mCallback);
+            workerThread.queueRequests();
+        }else
+        {
+            readThread.setBufferCallback(mCallback);
+        }
+        return 0;
+    }
+
 
     @Override
     public abstract void close();
@@ -182,6 +291,69 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
     @Override
     public abstract void setFlowControl(int flowControl);
 
+    /*
+     * Set how many read requests are kept in flight on the IN endpoint (1 - MAX_READ_PIPELINE_DEPTH).
+     * Each request has its own buffer, so the endpoint still has a request to fill while the data of a
+     * completed one is being delivered. Takes effect the next time the device is opened.
+     */
+    public void setReadPipelineDepth(int depth)
+    {
+        readPipelineDepth = Math.max(1, Math.min(MAX_READ_PIPELINE_DEPTH, depth));
+    }
+
+    public int getReadPipelineDepth()
+    {
+        return readPipelineDepth;
+    }
+
+    /*
+     * Set the size of one read transfer on the IN endpoint, up to SerialBuffer.DEFAULT_READ_BUFFER_SIZE.
+     * It is rounded down to whole max size packets. Large transfers move bulk data with fewer completions,
+     * small ones hand over data sooner on devices that only end a transfer when it is full.
+     * Takes effect when the read requests are queued again.
+     */
+    public void setReadTransferSize(int size)
+    {
+        readTransferSize = Math.max(1, Math.min(SerialBuffer.DEFAULT_READ_BUFFER_SIZE, size));
+        updateReadTransferLength();
+    }
+
+    public int getReadTransferSize()
+    {
+        return readTransferLength;
+    }
+
+    private void updateReadTransferLength()
+    {
+        int length = readTransferSize;
+        if(inPacketSize > 0)
+            length = Math.max(inPacketSize, length - length % inPacketSize);
+        readTransferLength = length;
+    }
+
+    /*
+     * Write queue overflow accounting, see SerialBuffer
+     */
+    public void setMaxBufferSize(int maxBufferSize)
+    {
+        serialBuffer.setMaxBufferSize(maxBufferSize);
+    }
+
+    public long getBytesDropped()
+    {
+        return serialBuffer.getBytesDropped();
+    }
+
+    public long getTruncationCount()
+    {
+        return serialBuffer.getTruncationCount();
+    }
+
+    public int getWriteHighWaterMark()
+    {
+        return serialBuffer.getWriteHighWaterMark();
+    }
+
     //Debug options
     public void debug(boolean value)
     {
@@ -210,51 +382,71 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
     /*
      * WorkerThread waits for request notifications from IN endpoint
      */
-    protected class WorkerThread extends Thread
+    protected class WorkerThread extends AbstractWorkerThread
     {
         private UsbSerialDevice usbSerialDevice;
 
         private UsbReadCallback callback;
-        private UsbRequest requestIN;
-        private AtomicBoolean working;
+        private UsbReadBufferCallback bufferCallback;
+        private volatile UsbRequest[] requestsIN; // One request per read buffer, requestsIN[i] fills serialBuffer.getReadBuffer(i)
 
         public WorkerThread(UsbSerialDevice usbSerialDevice)
         {
             this.usbSerialDevice = usbSerialDevice;
-            working = new AtomicBoolean(true);
         }
 
         @Override
-        public void run()
+        void doRun()
         {
-            while(working.get())
+            while(isWorking())
             {
-                UsbRequest request = connection.requestWait();
-                if(request != null && request.getEndpoint().getType() == UsbConstants.USB_ENDPOINT_XFER_BULK
+                UsbRequest request;
+                try
+                {
+                    // Bounded wait, so stopWorkingThread() is noticed even when nothing arrives
+                    request = connection.requestWait(AbstractWorkerThread.POLL_TIMEOUT);
+                } catch (TimeoutException e)
+                {
+                    continue;
+                }
+                if(!isWorking())
+                    break;
+                int index = indexOf(request);
+                if(index >= 0 && request.getEndpoint().getType() == UsbConstants.USB_ENDPOINT_XFER_BULK
                         && request.getEndpoint().getDirection() == UsbConstants.USB_DIR_IN)
                 {
-                    byte[] data = serialBuffer.getDataReceived();
+                    // Requests on the same endpoint complete in the order they were queued,
+                    // so the data is delivered in order even with several requests in flight
 
-                    // FTDI devices reserves two first bytes of an IN endpoint with info about
-                    // modem and Line.
+                    // FTDI devices reserves two first bytes of each packet of an IN endpoint with
+                    // info about modem and Line. They are removed in place.
+                    boolean hasData = true;
                     if(isFTDIDevice())
                     {
-                        ((FTDISerialDevice) usbSerialDevice).ftdiUtilities.checkModemStatus(data); //Check the Modem status
-                        serialBuffer.clearReadBuffer();
-
-                        if(data.length > 2)
-                        {
-                            data = ((FTDISerialDevice) usbSerialDevice).ftdiUtilities.adaptArray(data);
-                            onReceivedData(data);
-                        }
-                    }else
+                        FTDISerialDevice.FTDIUtilities ftdiUtilities = ((FTDISerialDevice) usbSerialDevice).ftdiUtilities;
+                        ByteBuffer buffer = serialBuffer.getReadBuffer(index);
+                        ftdiUtilities.checkModemStatus(buffer.array(), buffer.position()); //Check the Modem status
+                        buffer.position(ftdiUtilities.stripHeaders(buffer.array(), buffer.position()));
+                        hasData = buffer.position() > 0;
+                    }
+
+                    if(hasData && bufferCallback != null)
+                    {
+                        // Hand out a view of the request's own buffer, it is not queued again before the callback returns
+                        onReceivedData(serialBuffer.getDataReceivedView(index));
+                        serialBuffer.clearReadBuffer(index);
+                    }else if(hasData)
                     {
                         // Clear buffer, execute the callback
-                        serialBuffer.clearReadBuffer();
+                        byte[] data = serialBuffer.getDataReceived(index);
+                        serialBuffer.clearReadBuffer(index);
                         onReceivedData(data);
+                    }else
+                    {
+                        serialBuffer.clearReadBuffer(index);
                     }
-                    // Queue a new request
-                    requestIN.queue(serialBuffer.getReadBuffer(), SerialBuffer.DEFAULT_READ_BUFFER_SIZE);
+                    // Queue the request again at the end of the pipeline
+                    request.queue(serialBuffer.getReadBuffer(index), readTransferLength);
                 }
             }
         }
@@ -262,113 +454,193 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         public void setCallback(UsbReadCallback callback)
         {
             this.callback = callback;
+            this.bufferCallback = null;
+        }
+
+        public void setBufferCallback(UsbReadBufferCallback bufferCallback)
+        {
+            this.bufferCallback = bufferCallback;
+            this.callback = null;
         }
 
         public void setUsbRequest(UsbRequest request)
         {
-            this.requestIN = request;
+            setUsbRequests(new UsbRequest[]{request});
+        }
+
+        public void setUsbRequests(UsbRequest[] requests)
+        {
+            this.requestsIN = requests;
         }
 
         public UsbRequest getUsbRequest()
         {
-            return requestIN;
+            return requestsIN != null ? requestsIN[0] : null;
+        }
+
+        /*
+         * Queue every request of the pipeline, each with its own buffer
+         */
+        public void queueRequests()
+        {
+            for(int i=0;i<=requestsIN.length-1;i++)
+                requestsIN[i].queue(serialBuffer.getReadBuffer(i), readTransferLength);
+        }
+
+        /*
+         * Cancel and close the requests created for the pipeline, the first request belongs to the driver.
+         * The thread must have been told to stop, so it does not queue them again.
+         */
+        public void releaseRequests()
+        {
+            UsbRequest[] requests = requestsIN;
+            if(requests == null)
+                return;
+            for(int i=1;i<=requests.length-1;i++)
+            {
+                requests[i].cancel();
+                requests[i].close();
+            }
+            requestsIN = new UsbRequest[]{requests[0]};
+        }
+
+        private int indexOf(UsbRequest request)
+        {
+            if(request == null || requestsIN == null)
+                return -1;
+            for(int i=0;i<=requestsIN.length-1;i++)
+            {
+                if(requestsIN[i] == request)
+                    return i;
+            }
+            return -1;
         }
 
         private void onReceivedData(byte[] data)
         {
             if(callback != null)
                 callback.onReceivedData(data);
+            else if(bufferCallback != null)
+                bufferCallback.onReceivedData(ByteBuffer.wrap(data).asReadOnlyBuffer());
+        }
+
+        private void onReceivedData(ByteBuffer data)
+        {
+            if(bufferCallback != null)
+                bufferCallback.onReceivedData(data);
         }
 
         public void stopWorkingThread()
         {
-            working.set(false);
+            stopThread();
         }
     }
 
-    protected class WriteThread extends Thread
+    protected class WriteThread extends AbstractWorkerThread
     {
         private UsbEndpoint outEndpoint;
-        private AtomicBoolean working;
+        private volatile byte[] transfer; // Preallocated, a whole number of max size packets
+        private volatile UsbWriteCallback writeCallback;
 
         public WriteThread()
         {
-            working = new AtomicBoolean(true);
+            transfer = new byte[WRITE_TRANSFER_SIZE];
         }
 
         @Override
-        public void run()
+        void doRun()
         {
-            while(working.get())
+            while(isWorking())
             {
-                byte[] data = serialBuffer.getWriteBuffer();
-                connection.bulkTransfer(outEndpoint, data, data.length, USB_TIMEOUT);
+                // Queued writes are coalesced into as few bulk transfers as possible
+                byte[] data = transfer;
+                int length = serialBuffer.takeWriteBuffer(data);
+                if(length == 0)
+                    continue;
+                int sent = connection.bulkTransfer(outEndpoint, data, length, USB_TIMEOUT);
+                serialBuffer.writeBufferCompleted(length, sent == length);
+                UsbWriteCallback callback = writeCallback;
+                if(callback != null)
+                    callback.onWriteCompleted(length, sent == length);
             }
         }
 
+        public void setCallback(UsbWriteCallback writeCallback)
+        {
+            this.writeCallback = writeCallback;
+        }
+
         public void setUsbEndpoint(UsbEndpoint outEndpoint)
         {
             this.outEndpoint = outEndpoint;
+            int packetSize = outEndpoint.getMaxPacketSize();
+            if(packetSize > 0 && WRITE_TRANSFER_SIZE % packetSize != 0)
+                transfer = new byte[Math.max(1, WRITE_TRANSFER_SIZE / packetSize) * packetSize];
         }
 
         public void stopWriteThread()
         {
-            working.set(false);
+            stopThread();
+            interrupt(); // Wakes it up from waiting for queued data
         }
     }
 
-    protected class ReadThread extends Thread
+    protected class ReadThread extends AbstractWorkerThread
     {
         private UsbSerialDevice usbSerialDevice;
 
         private UsbReadCallback callback;
+        private UsbReadBufferCallback bufferCallback;
         private UsbEndpoint inEndpoint;
-        private AtomicBoolean working;
 
         public ReadThread(UsbSerialDevice usbSerialDevice)
         {
             this.usbSerialDevice = usbSerialDevice;
-            working = new AtomicBoolean(true);
         }
 
         public void setCallback(UsbReadCallback callback)
         {
             this.callback = callback;
+            this.bufferCallback = null;
+        }
+
+        public void setBufferCallback(UsbReadBufferCallback bufferCallback)
+        {
+            this.bufferCallback = bufferCallback;
+            this.callback = null;
         }
 
         @Override
-        public void run()
+        void doRun()
         {
             byte[] dataReceived = null;
 
-            while(working.get())
+            while(isWorking())
             {
                 int numberBytes;
                 if(inEndpoint != null)
                     numberBytes = connection.bulkTransfer(inEndpoint, serialBuffer.getBufferCompatible(),
-                            SerialBuffer.DEFAULT_READ_BUFFER_SIZE, 0);
+                            readTransferLength, AbstractWorkerThread.POLL_TIMEOUT);
                 else
                     numberBytes = 0;
 
-                if(numberBytes > 0)
+                // FTDI devices reserve two first bytes of each packet of an IN endpoint with info about
+                // modem and Line. They are removed in place.
+                if(numberBytes > 0 && isFTDIDevice())
                 {
-                    dataReceived = serialBuffer.getDataReceivedCompatible(numberBytes);
-
-                    // FTDI devices reserve two first bytes of an IN endpoint with info about
-                    // modem and Line.
-                    if(isFTDIDevice())
-                    {
-                        ((FTDISerialDevice) usbSerialDevice).ftdiUtilities.checkModemStatus(dataReceived);
+                    FTDISerialDevice.FTDIUtilities ftdiUtilities = ((FTDISerialDevice) usbSerialDevice).ftdiUtilities;
+                    byte[] buffer = serialBuffer.getBufferCompatible();
+                    ftdiUtilities.checkModemStatus(buffer, numberBytes);
+                    numberBytes = ftdiUtilities.stripHeaders(buffer, numberBytes);
+                }
 
-                        if(dataReceived.length > 2)
-                        {
-                            dataReceived = ((FTDISerialDevice) usbSerialDevice).ftdiUtilities.adaptArray(dataReceived);
-                            onReceivedData(dataReceived);
-                        }
-                    }else
-                    {
-                        onReceivedData(dataReceived);
-                    }
+                if(numberBytes > 0 && bufferCallback != null)
+                {
+                    bufferCallback.onReceivedData(serialBuffer.getDataReceivedCompatibleView(numberBytes));
+                }else if(numberBytes > 0)
+                {
+                    dataReceived = serialBuffer.getDataReceivedCompatible(numberBytes);
+                    onReceivedData(dataReceived);
                 }
             }
         }
@@ -380,13 +652,15 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
 
         public void stopReadThread()
         {
-            working.set(false);
+            stopThread();
         }
 
         private void onReceivedData(byte[] data)
         {
             if(callback != null)
                 callback.onReceivedData(data);
+            else if(bufferCallback != null)
+                bufferCallback.onReceivedData(ByteBuffer.wrap(data).asReadOnlyBuffer());
         }
     }
 
@@ -398,9 +672,20 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
 
     protected void setThreadsParams(UsbRequest request, UsbEndpoint endpoint)
     {
+        inPacketSize = request.getEndpoint().getMaxPacketSize();
+        updateReadTransferLength();
         if(mr1Version)
         {
-            workerThread.setUsbRequest(request);
+            // The given request is the first of the pipeline, the rest read the same endpoint
+            UsbRequest[] requests = new UsbRequest[readPipelineDepth];
+            requests[0] = request;
+            for(int i=1;i<=requests.length-1;i++)
+            {
+                requests[i] = new UsbRequest();
+                requests[i].initialize(connection, request.getEndpoint());
+            }
+            serialBuffer.setReadBufferCount(requests.length);
+            workerThread.setUsbRequests(requests);
             writeThread.setUsbEndpoint(endpoint);
         }else
         {
@@ -414,15 +699,20 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
      */
     protected void killWorkingThread()
     {
+        long start = System.nanoTime();
         if(mr1Version && workerThread != null)
         {
             workerThread.stopWorkingThread();
+            workerThread.joinThread(AbstractWorkerThread.STOP_TIMEOUT);
+            workerThread.releaseRequests();
             workerThread = null;
         }else if(!mr1Version && readThread != null)
         {
             readThread.stopReadThread();
+            readThread.joinThread(AbstractWorkerThread.STOP_TIMEOUT);
             readThread = null;
         }
+        threadStopNanos = System.nanoTime() - start;
     }
 
     /*
@@ -430,26 +720,32 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
      */
     protected void restartWorkingThread()
     {
+        long start = System.nanoTime();
         if(mr1Version && workerThread == null)
         {
             workerThread = new WorkerThread(this);
-            workerThread.start();
-            while(!workerThread.isAlive()){} // Busy waiting
+            workerThread.startAndWait(AbstractWorkerThread.START_TIMEOUT);
         }else if(!mr1Version && readThread == null)
         {
             readThread = new ReadThread(this);
-            readThread.start();
-            while(!readThread.isAlive()){} // Busy waiting
+            readThread.startAndWait(AbstractWorkerThread.START_TIMEOUT);
         }
+        threadStartNanos = System.nanoTime() - start;
     }
 
     protected void killWriteThread()
     {
         if(writeThread != null)
         {
+            long start = System.nanoTime();
             writeThread.stopWriteThread();
+            // An ongoing bulk transfer is not interrupted and may take up to USB_TIMEOUT. close() may run
+            // on the main thread, so the join stays bounded; a thread still in its transfer ends on its own
+            // once the connection is closed and stays in getLiveThreadCount() until then
+            writeThread.joinThread(AbstractWorkerThread.STOP_TIMEOUT);
             writeThread = null;
             serialBuffer.resetWriteBuffer();
+            threadStopNanos = System.nanoTime() - start;
         }
     }
 
@@ -457,9 +753,11 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
     {
         if(writeThread == null)
         {
+            long start = System.nanoTime();
             writeThread = new WriteThread();
-            writeThread.start();
-            while(!writeThread.isAlive()){} // Busy waiting
+            writeThread.setCallback(writeCallback);
+            writeThread.startAndWait(AbstractWorkerThread.START_TIMEOUT);
+            threadStartNanos = System.nanoTime() - start;
         }
     }
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package com.felhr.usbserial;
 
+import java.nio.ByteBuffer;
+
 /**
  * Interface to handle a serial port
  * @author felhr (felhr85@gmail.com)
@@ -31,7 +33,10 @@ public interface UsbSerialInterface
     // Common Usb Serial Operations (I/O Asynchronous)
     boolean open();
     void write(byte[] buffer);
+    boolean write(byte[] buffer, int offset, int length);
+    boolean flush(long timeoutMillis);
     int read(UsbReadCallback mCallback);
+    int readBuffer(UsbReadBufferCallback mCallback);
     void close();
 
     // Common Usb Serial Operations (I/O Synchronous)
@@ -96,4 +101,27 @@ public interface UsbSerialInterface
         void onReceivedData(byte[] data);
     }
 
+    // Usb Read Callback without copying: data is a read-only view of the driver's buffer
+    // from its position to its limit. It is only valid until the callback returns.
+    interface UsbReadBufferCallback
+    {
+        void onReceivedData(ByteBuffer data);
+    }
+
+    // Optional capability of devices that hold received bytes in the chip until a timer expires
+    // (e.g. FTDI). Check with instanceof before use.
+    interface UsbLatencyTimer
+    {
+        // Milliseconds (1 - 255) the chip waits before sending a partly filled packet, returns false on failure
+        boolean setLatencyTimer(int milliseconds);
+        // Current value in milliseconds, -1 on failure
+        int getLatencyTimer();
+    }
+
+    // Usb Write Callback: called after every bulk transfer of queued data
+    interface UsbWriteCallback
+    {
+        void onWriteCompleted(int length, boolean transferred);
+    }
+
 }
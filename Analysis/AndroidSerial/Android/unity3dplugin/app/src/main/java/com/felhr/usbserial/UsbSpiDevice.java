@@ -6,14 +6,15 @@ import android.hardware.usb.UsbEndpoint;
 
 import com.felhr.deviceids.CP2130Ids;
 
-import java.util.concurrent.atomic.AtomicBoolean;
-
 public abstract class UsbSpiDevice implements UsbSpiInterface
 {
     private static final String CLASS_ID = UsbSerialDevice.class.getSimpleName();
 
     protected static final int USB_TIMEOUT = 5000;
 
+    // Largest bulk transfer the write thread sends, rounded down to whole max size packets
+    protected static final int WRITE_TRANSFER_SIZE = 16 * 1024;
+
     protected final UsbDevice device;
     protected final UsbDeviceConnection connection;
 
@@ -26,6 +27,10 @@ public abstract class UsbSpiDevice implements UsbSpiInterface
     private UsbEndpoint inEndpoint;
     private UsbEndpoint outEndpoint;
 
+    // Time the last thread restart took, see getThreadStartNanos()
+    private volatile long threadStartNanos;
+    private volatile long threadStopNanos;
+
     public UsbSpiDevice(UsbDevice device, UsbDeviceConnection connection)
     {
         this.device = device;
@@ -74,6 +79,18 @@ public abstract class UsbSpiDevice implements UsbSpiInterface
         readThread.setCallback(misoCallback);
     }
 
+    // Time the last restart of a driver thread waited for the thread to run
+    public long getThreadStartNanos()
+    {
+        return threadStartNanos;
+    }
+
+    // Time the last kill of a driver thread waited for the thread to end
+    public long getThreadStopNanos()
+    {
+        return threadStopNanos;
+    }
+
     @Override
     public abstract int getClockDivider();
 
@@ -83,46 +100,53 @@ public abstract class UsbSpiDevice implements UsbSpiInterface
     @Override
     public abstract void closeSPI();
 
-    protected class WriteThread extends Thread
+    protected class WriteThread extends AbstractWorkerThread
     {
         private UsbEndpoint outEndpoint;
-        private AtomicBoolean working;
+        private volatile byte[] transfer; // Preallocated, a whole number of max size packets
 
         public WriteThread()
         {
-            working = new AtomicBoolean(true);
+            transfer = new byte[WRITE_TRANSFER_SIZE];
         }
 
         @Override
-        public void run()
+        void doRun()
         {
-            while(working.get())
+            while(isWorking())
             {
-                byte[] data = serialBuffer.getWriteBuffer();
-                connection.bulkTransfer(outEndpoint, data, data.length, USB_TIMEOUT);
+                // Queued writes are coalesced into as few bulk transfers as possible
+                byte[] data = transfer;
+                int length = serialBuffer.takeWriteBuffer(data);
+                if(length == 0)
+                    continue;
+                int sent = connection.bulkTransfer(outEndpoint, data, length, USB_TIMEOUT);
+                serialBuffer.writeBufferCompleted(length, sent == length);
             }
         }
 
         public void setUsbEndpoint(UsbEndpoint outEndpoint)
         {
             this.outEndpoint = outEndpoint;
+            int packetSize = outEndpoint.getMaxPacketSize();
+            if(packetSize > 0 && WRITE_TRANSFER_SIZE % packetSize != 0)
+                transfer = new byte[Math.max(1, WRITE_TRANSFER_SIZE / packetSize) * packetSize];
         }
 
         public void stopWriteThread()
         {
-            working.set(false);
+            stopThread();
+            interrupt(); // Wakes it up from waiting for queued data
         }
     }
 
-    protected class ReadThread extends Thread
+    protected class ReadThread extends AbstractWorkerThread
     {
         private com.felhr.usbserial.UsbSpiInterface.UsbMISOCallback misoCallback;
         private UsbEndpoint inEndpoint;
-        private AtomicBoolean working;
 
         public ReadThread()
         {
-            working = new AtomicBoolean(true);
         }
 
         public void setCallback(com.felhr.usbserial.UsbSpiInterface.UsbMISOCallback misoCallback)
@@ -131,16 +155,16 @@ public abstract class UsbSpiDevice implements UsbSpiInterface
         }
 
         @Override
-        public void run()
+        void doRun()
         {
             byte[] dataReceived = null;
 
-            while(working.get())
+            while(isWorking())
             {
                 int numberBytes;
                 if(inEndpoint != null)
                     numberBytes = connection.bulkTransfer(inEndpoint, serialBuffer.getBufferCompatible(),
-                            SerialBuffer.DEFAULT_READ_BUFFER_SIZE, 0);
+                            SerialBuffer.DEFAULT_READ_BUFFER_SIZE, AbstractWorkerThread.POLL_TIMEOUT);
                 else
                     numberBytes = 0;
 
@@ -160,7 +184,7 @@ public abstract class UsbSpiDevice implements UsbSpiInterface
 
         public void stopReadThread()
         {
-            working.set(false);
+            stopThread();
         }
 
         private void onReceivedData(byte[] data)
@@ -186,8 +210,11 @@ public abstract class UsbSpiDevice implements UsbSpiInterface
     {
         if(readThread != null)
         {
+            long start = System.nanoTime();
             readThread.stopReadThread();
+            readThread.joinThread(AbstractWorkerThread.STOP_TIMEOUT);
             readThread = null;
+            threadStopNanos = System.nanoTime() - start;
         }
     }
 
@@ -196,18 +223,25 @@ public abstract class UsbSpiDevice implements UsbSpiInterface
      */
     protected void restartWorkingThread()
     {
+        long start = System.nanoTime();
         readThread = new ReadThread();
-        readThread.start();
-        while(!readThread.isAlive()){} // Busy waiting
+        readThread.startAndWait(AbstractWorkerThread.START_TIMEOUT);
+        threadStartNanos = System.nanoTime() - start;
     }
 
     protected void killWriteThread()
     {
         if(writeThread != null)
         {
+            long start = System.nanoTime();
             writeThread.stopWriteThread();
+            // An ongoing bulk transfer is not interrupted and may take up to USB_TIMEOUT. close() may run
+            // on the main thread, so the join stays bounded; a thread still in its transfer ends on its own
+            // once the connection is closed and stays in getLiveThreadCount() until then
+            writeThread.joinThread(AbstractWorkerThread.STOP_TIMEOUT);
             writeThread = null;
             serialBuffer.resetWriteBuffer();
+            threadStopNanos = System.nanoTime() - start;
         }
     }
 
@@ -215,9 +249,10 @@ public abstract class UsbSpiDevice implements UsbSpiInterface
     {
         if(writeThread == null)
         {
+            long start = System.nanoTime();
             writeThread = new WriteThread();
-            writeThread.start();
-            while(!writeThread.isAlive()){} // Busy waiting
+            writeThread.startAndWait(AbstractWorkerThread.START_TIMEOUT);
+            threadStartNanos = System.nanoTime() - start;
         }
     }
 }
@@ -0,0 +1,106 @@
+package com.marin2.decawave.unity3dplugin;
+
+/**
+ * The configured coordinates of the anchors, indexed by anchor id.
+ * Coordinates are in meters in whatever frame the game uses.
+ * Changes are rare, so every method simply locks; readers on hot paths
+ * copy the table with {@link #copyTo} only when {@link #getVersion()} has changed.
+ */
+public class DecawaveAnchors {
+
+    /**
+     * The count of possible anchor ids (the id is two hex digits in the frame)
+     */
+    public static final int MAX_ANCHORS = 256;
+
+    private final double[] positions = new double[MAX_ANCHORS * 3];
+    private final boolean[] configured = new boolean[MAX_ANCHORS];
+    private volatile int version;
+
+    /**
+     * Sets the position of an anchor
+     * @param anchorId The id of the anchor (0 - 255)
+     * @param x The x coordinate in meters
+     * @param y The y coordinate in meters
+     * @param z The z coordinate in meters
+     * @throws IllegalArgumentException if the id is out of range
+     */
+    public synchronized void setPosition( int anchorId, double x, double y, double z ) {
+        checkId( anchorId );
+        positions[anchorId * 3] = x;
+        positions[anchorId * 3 + 1] = y;
+        positions[anchorId * 3 + 2] = z;
+        configured[anchorId] = true;
+        version++;
+    }
+
+    /**
+     * Removes the position of an anchor, so its ranges are no longer used
+     * @param anchorId The id of the anchor (0 - 255)
+     * @throws IllegalArgumentException if the id is out of range
+     */
+    public synchronized void remove( int anchorId ) {
+        checkId( anchorId );
+        configured[anchorId] = false;
+        version++;
+    }
+
+    /**
+     * Removes every anchor position
+     */
+    public synchronized void clear() {
+        for ( int i = 0; i < MAX_ANCHORS; i++ )
+            configured[i] = false;
+        version++;
+    }
+
+    /**
+     * Get the position of an anchor
+     * @param anchorId The id of the anchor (0 - 255)
+     * @param out Receives x, y and z in meters
+     * @return true if the anchor has a position
+     */
+    public synchronized boolean getPosition( int anchorId, double[] out ) {
+        if ( anchorId < 0 || anchorId >= MAX_ANCHORS || !configured[anchorId] )
+            return false;
+        out[0] = positions[anchorId * 3];
+        out[1] = positions[anchorId * 3 + 1];
+        out[2] = positions[anchorId * 3 + 2];
+        return true;
+    }
+
+    /**
+     * Checks if an anchor has a position
+     * @param anchorId The id of the anchor
+     * @return true if the anchor has a position
+     */
+    public synchronized boolean isConfigured( int anchorId ) {
+        return anchorId >= 0 && anchorId < MAX_ANCHORS && configured[anchorId];
+    }
+
+    /**
+     * Copies the whole table without allocating
+     * @param positions Receives x, y and z of every anchor ({@link #MAX_ANCHORS} * 3 values)
+     * @param configured Receives the configured flag of every anchor ({@link #MAX_ANCHORS} values)
+     * @return the version of the copied table
+     */
+    public synchronized int copyTo( double[] positions, boolean[] configured ) {
+        System.arraycopy( this.positions, 0, positions, 0, this.positions.length );
+        System.arraycopy( this.configured, 0, configured, 0, this.configured.length );
+        return version;
+    }
+
+    /**
+     * Get the version of the table. The version changes on every modification.
+     * @return version number
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    private static void checkId( int anchorId ) {
+        if ( anchorId < 0 || anchorId >= MAX_ANCHORS )
+            throw new IllegalArgumentException( "Anchor id out of range: " + anchorId );
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.marin2.decawave.unity3dplugin;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Opens and closes receiver devices for the manager.
+ * The interface has no Android dependencies, so the manager can be driven by a
+ * fake connector and a fake {@link DecawaveDeviceSource} on a plain JVM.
+ * @param <D> The type of the device handle reported by the device source
+ */
+public interface DecawaveDeviceConnector<D> {
+
+    /**
+     * Receives the data and the errors of one open device
+     */
+    interface Listener {
+
+        /**
+         * Called with every piece of data received from the device.
+         * The buffer is only valid during the call.
+         * @param data The received bytes from the position to the limit of the buffer
+         */
+        void onReceivedData( ByteBuffer data );
+
+        /**
+         * Called when the device fails to open or fails while it is open
+         * @param message Description of the failure
+         */
+        void onError( String message );
+    }
+
+    /**
+     * An open device
+     */
+    interface Connection {
+
+        /**
+         * Closes the device. No data is delivered after the call returns.
+         */
+        void close();
+    }
+
+    /**
+     * Opens a device and starts delivering its data
+     * @param serial The serial number of the device
+     * @param device The device handle
+     * @param listener The listener for the data and the errors of the device
+     * @return the open device or null if it could not be opened (the reason is given to the listener)
+     */
+    Connection open( String serial, D device, Listener listener );
+
+    /**
+     * Get the count of driver threads the connector runs for its open devices
+     * @return number of running threads
+     */
+    int getLiveThreadCount();
+
+}
@@ -0,0 +1,54 @@
+package com.marin2.decawave.unity3dplugin;
+
+/**
+ * A source of attach and detach notifications for receiver devices.
+ * The interface has no Android dependencies, so the device handling can be
+ * driven by a fake source on a plain JVM.
+ * @param <D> The type of the device handle passed to the listener
+ */
+public interface DecawaveDeviceSource<D> {
+
+    /**
+     * Receives the device notifications of a source
+     * @param <D> The type of the device handle
+     */
+    interface Listener<D> {
+
+        /**
+         * Called when a matching device is attached or found on start or refresh.
+         * The same device can be reported again by {@link DecawaveDeviceSource#refresh()}.
+         * @param serial The serial number of the device
+         * @param device The device handle
+         */
+        void onDeviceAttached( String serial, D device );
+
+        /**
+         * Called when a previously reported device is detached
+         * @param serial The serial number of the device
+         */
+        void onDeviceDetached( String serial );
+
+        /**
+         * Called when the source fails to handle a device
+         * @param message Description of the failure
+         */
+        void onDeviceError( String message );
+    }
+
+    /**
+     * Starts delivering notifications and reports every device that is already attached
+     * @param listener The listener for the notifications
+     */
+    void start( Listener<D> listener );
+
+    /**
+     * Reports every currently attached device again, e.g. to retry devices that failed to open
+     */
+    void refresh();
+
+    /**
+     * Stops delivering notifications
+     */
+    void stop();
+
+}
@@ -0,0 +1,294 @@
+package com.marin2.decawave.unity3dplugin;
+
+/**
+ * A constant-velocity Kalman filter for the position of one receiver.
+ * The filter is updated with every single range (an extended Kalman filter
+ * update against the position of the anchor), so it moves on as soon as a
+ * range arrives instead of waiting for a full position fix, and it can predict
+ * the position at any later time. The state is x, y, z, vx, vy, vz in meters
+ * and meters per second. Everything is kept in primitive arrays and nothing is
+ * allocated after construction.
+ *
+ * Updates come from the parsing thread of the receiver and predictions from
+ * any other thread; every public method locks the filter for a few microseconds.
+ */
+public class DecawaveKalmanFilter {
+
+    /**
+     * The default process noise: the spectral density of the random acceleration in m^2/s^3
+     */
+    public static final double DEFAULT_PROCESS_NOISE = 1.0;
+    /**
+     * The default measurement noise: the standard deviation of a range in meters
+     */
+    public static final double DEFAULT_MEASUREMENT_NOISE = 0.1;
+    /**
+     * The default longest gap between updates in milliseconds before the filter starts over
+     */
+    public static final long DEFAULT_MAX_GAP = 2000;
+
+    /**
+     * The variance of the initial position (m^2) and velocity ((m/s)^2)
+     */
+    private static final double INITIAL_POSITION_VARIANCE = 1.0;
+    private static final double INITIAL_VELOCITY_VARIANCE = 1.0;
+
+    private static final int ANCHORS = DecawaveAnchors.MAX_ANCHORS;
+    private static final int N = 6;
+
+    private final DecawaveAnchors anchors;
+    private final double[] anchorPositions = new double[ANCHORS * 3];
+    private final boolean[] anchorConfigured = new boolean[ANCHORS];
+    private int anchorVersion = -1;
+
+    /**
+     * State vector and its covariance (row-major 6x6)
+     */
+    private final double[] state = new double[N];
+    private final double[] covariance = new double[N * N];
+    /**
+     * Scratch vector for P * H'
+     */
+    private final double[] gain = new double[N];
+    private long timestamp;
+    private boolean initialized;
+
+    private double processNoise = DEFAULT_PROCESS_NOISE;
+    private double measurementVariance = DEFAULT_MEASUREMENT_NOISE * DEFAULT_MEASUREMENT_NOISE;
+    private long maxGapNanos = DEFAULT_MAX_GAP * 1000000L;
+    private boolean fixedHeight;
+    private double height;
+    private long updateCount;
+
+    /**
+     * Creates a filter
+     * @param anchors The anchor positions the ranges are measured to
+     */
+    public DecawaveKalmanFilter( DecawaveAnchors anchors ) {
+        this.anchors = anchors;
+    }
+
+    /**
+     * Set the process noise. A higher value follows fast moves sooner, a lower one smooths more.
+     * @param processNoise The spectral density of the random acceleration in m^2/s^3
+     */
+    public synchronized void setProcessNoise( double processNoise ) {
+        this.processNoise = processNoise;
+    }
+
+    /**
+     * Get the process noise
+     * @return the spectral density of the random acceleration in m^2/s^3
+     */
+    public synchronized double getProcessNoise() {
+        return processNoise;
+    }
+
+    /**
+     * Set the measurement noise
+     * @param measurementNoise The standard deviation of a range in meters
+     */
+    public synchronized void setMeasurementNoise( double measurementNoise ) {
+        this.measurementVariance = measurementNoise * measurementNoise;
+    }
+
+    /**
+     * Get the measurement noise
+     * @return the standard deviation of a range in meters
+     */
+    public synchronized double getMeasurementNoise() {
+        return Math.sqrt( measurementVariance );
+    }
+
+    /**
+     * Set the longest gap between updates before the filter starts over
+     * @param maxGapMillis milliseconds
+     */
+    public synchronized void setMaxGapMillis( long maxGapMillis ) {
+        this.maxGapNanos = maxGapMillis * 1000000L;
+    }
+
+    /**
+     * Keep the receiver at a known height, see {@link DecawaveSolver#setFixedHeight}
+     * @param enabled true to keep z fixed
+     * @param height The z coordinate of the receiver in meters
+     */
+    public synchronized void setFixedHeight( boolean enabled, double height ) {
+        this.fixedHeight = enabled;
+        this.height = height;
+        if ( enabled && initialized )
+            pinHeight();
+    }
+
+    /**
+     * Checks if the filter has a state to update
+     * @return true if the filter has been initialized
+     */
+    public synchronized boolean isInitialized() {
+        return initialized;
+    }
+
+    /**
+     * Starts the filter from a known position (e.g. a solver fix) with zero velocity
+     * @param x The x coordinate in meters
+     * @param y The y coordinate in meters
+     * @param z The z coordinate in meters
+     * @param timestampNanos The time of the position from {@link System#nanoTime()}
+     */
+    public synchronized void initialize( double x, double y, double z, long timestampNanos ) {
+        for ( int i = 0; i < N * N; i++ )
+            covariance[i] = 0;
+        for ( int i = 0; i < 3; i++ ) {
+            state[i + 3] = 0;
+            covariance[i * N + i] = INITIAL_POSITION_VARIANCE;
+            covariance[( i + 3 ) * N + i + 3] = INITIAL_VELOCITY_VARIANCE;
+        }
+        state[0] = x;
+        state[1] = y;
+        state[2] = z;
+        timestamp = timestampNanos;
+        initialized = true;
+        if ( fixedHeight )
+            pinHeight();
+    }
+
+    /**
+     * Forgets the state, the filter has to be initialized again
+     */
+    public synchronized void reset() {
+        initialized = false;
+    }
+
+    /**
+     * Moves the filter to the time of a range and corrects it with the range
+     * @param anchorId The id of the anchor
+     * @param distanceInMillimeters The distance from the anchor in millimeters
+     * @param timestampNanos The arrival time of the range from {@link System#nanoTime()}
+     * @return true if the filter was updated, false if it is not initialized, the anchor
+     *         has no position or the gap since the last update was too long (the filter is then reset)
+     */
+    public synchronized boolean update( int anchorId, int distanceInMillimeters, long timestampNanos ) {
+        if ( !initialized )
+            return false;
+        if ( anchors.getVersion() != anchorVersion )
+            anchorVersion = anchors.copyTo( anchorPositions, anchorConfigured );
+        if ( anchorId < 0 || anchorId >= ANCHORS || !anchorConfigured[anchorId] )
+            return false;
+        long elapsed = timestampNanos - timestamp;
+        if ( elapsed > maxGapNanos ) {
+            initialized = false;
+            return false;
+        }
+        if ( elapsed > 0 ) {
+            advance( elapsed / 1e9 );
+            timestamp = timestampNanos;
+        }
+
+        // measurement h(x) = |p - a| with the jacobian H = [ u 0 ], u the unit vector from the anchor
+        double dx = state[0] - anchorPositions[anchorId * 3];
+        double dy = state[1] - anchorPositions[anchorId * 3 + 1];
+        double dz = state[2] - anchorPositions[anchorId * 3 + 2];
+        double range = Math.sqrt( dx * dx + dy * dy + dz * dz );
+        if ( range < 1e-6 )
+            return false;
+        double ux = dx / range;
+        double uy = dy / range;
+        double uz = fixedHeight ? 0 : dz / range;
+
+        // P * H' (one column) and the innovation variance S = H * P * H' + R
+        for ( int i = 0; i < N; i++ )
+            gain[i] = covariance[i * N] * ux + covariance[i * N + 1] * uy + covariance[i * N + 2] * uz;
+        double s = gain[0] * ux + gain[1] * uy + gain[2] * uz + measurementVariance;
+        double innovation = distanceInMillimeters / 1000.0 - range;
+
+        // x += K * y and P -= K * H * P, with K = P * H' / S
+        for ( int i = 0; i < N; i++ ) {
+            state[i] += gain[i] * innovation / s;
+            for ( int j = 0; j < N; j++ )
+                covariance[i * N + j] -= gain[i] * gain[j] / s;
+        }
+        if ( fixedHeight )
+            pinHeight();
+        updateCount++;
+        return true;
+    }
+
+    /**
+     * Predicts the position at a given time without changing the filter
+     * @param timestampNanos The time to predict for, from {@link System#nanoTime()}
+     * @param out Receives x, y, z (meters) and, if there is room, vx, vy, vz (meters per second)
+     * @return the time of the last update, or 0 if the filter is not initialized
+     */
+    public synchronized long predict( long timestampNanos, double[] out ) {
+        if ( !initialized )
+            return 0;
+        double dt = ( timestampNanos - timestamp ) / 1e9;
+        for ( int i = 0; i < 3; i++ ) {
+            out[i] = state[i] + state[i + 3] * dt;
+            if ( out.length > i + 3 )
+                out[i + 3] = state[i + 3];
+        }
+        return timestamp;
+    }
+
+    /**
+     * Get the standard deviation of the position (the root of the trace of the position covariance)
+     * @return meters, or infinity if the filter is not initialized
+     */
+    public synchronized double getPositionError() {
+        if ( !initialized )
+            return Double.POSITIVE_INFINITY;
+        return Math.sqrt( covariance[0] + covariance[N + 1] + covariance[2 * N + 2] );
+    }
+
+    /**
+     * Get the count of ranges the filter has been updated with
+     * @return update count
+     */
+    public synchronized long getUpdateCount() {
+        return updateCount;
+    }
+
+    /**
+     * Moves the state dt seconds forward: x = F * x and P = F * P * F' + Q,
+     * with F = [ I dt*I ; 0 I ] and Q the white acceleration noise of every axis
+     * @param dt seconds
+     */
+    private void advance( double dt ) {
+        for ( int i = 0; i < 3; i++ )
+            state[i] += state[i + 3] * dt;
+        for ( int i = 0; i < 3; i++ ) {
+            for ( int j = 0; j < 3; j++ ) {
+                double a = covariance[i * N + j];
+                double b = covariance[i * N + j + 3];
+                double c = covariance[( i + 3 ) * N + j];
+                double d = covariance[( i + 3 ) * N + j + 3];
+                covariance[i * N + j] = a + dt * ( b + c ) + dt * dt * d;
+                covariance[i * N + j + 3] = b + dt * d;
+                covariance[( i + 3 ) * N + j] = c + dt * d;
+            }
+        }
+        double q = processNoise;
+        for ( int i = 0; i < 3; i++ ) {
+            covariance[i * N + i] += q * dt * dt * dt / 3;
+            covariance[i * N + i + 3] += q * dt * dt / 2;
+            covariance[( i + 3 ) * N + i] += q * dt * dt / 2;
+            covariance[( i + 3 ) * N + i + 3] += q * dt;
+        }
+    }
+
+    /**
+     * Puts z at the fixed height and removes its uncertainty
+     */
+    private void pinHeight() {
+        state[2] = height;
+        state[5] = 0;
+        for ( int i = 0; i < N; i++ ) {
+            covariance[2 * N + i] = 0;
+            covariance[i * N + 2] = 0;
+            covariance[5 * N + i] = 0;
+            covariance[i * N + 5] = 0;
+        }
+    }
+
+}
@@ -1,32 +1,23 @@
 package com.marin2.decawave.unity3dplugin;
 
-import android.annotation.TargetApi;
 import android.app.Activity;
-import android.content.Context;
-import android.hardware.usb.UsbDevice;
-import android.hardware.usb.UsbDeviceConnection;
-import android.hardware.usb.UsbInterface;
-import android.hardware.usb.UsbManager;
-import android.os.Build;
-import android.os.Handler;
-import android.support.annotation.RequiresApi;
-
-import com.felhr.deviceids.CH34xIds;
-import com.felhr.deviceids.CP210xIds;
-import com.felhr.deviceids.FTDISioIds;
-import com.felhr.deviceids.PL2303Ids;
-import com.felhr.usbserial.UsbSerialDevice;
-import com.felhr.usbserial.UsbSerialInterface;
-
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
-
-import static com.felhr.usbserial.UsbSerialDevice.isCdcDevice;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by mhjtas on 19.1.2017.
  * Copyright: University of Turku & Mika Taskinen
+ *
+ * Devices are reported by a {@link DecawaveDeviceSource} and opened by a
+ * {@link DecawaveDeviceConnector}. Only {@link #getInstance(Activity)} touches
+ * Android, so the manager can run on a plain JVM with fake ones.
+ *
+ * Packets may be taken from any thread, through {@link #exportRanges(ByteBuffer)} or
+ * the parsers. Each parser serializes its consumers, see {@link DecawaveParser}.
  */
 
 public class DecawaveManager {
@@ -37,164 +28,271 @@ public class DecawaveManager {
     private static final int vendorId = 1366;
     private static final int productId = 0105;
 
+    /**
+     * Longest time a disconnect waits for the parser thread of the device to end
+     */
+    private static final long PARSER_STOP_TIMEOUT = 1000;
+
+    /**
+     * Longest time a shutdown waits for the solver thread to end
+     */
+    private static final long SOLVER_STOP_TIMEOUT = 1000;
+
+    /**
+     * Oldest solver fix (in nanoseconds) a position filter is started from
+     */
+    private static final long FILTER_MAX_FIX_AGE = 200000000L;
+
     /**
      * Singleton principle demands this (no actual constructor fo public use)
      */
     private static DecawaveManager instance;
-    private final Activity activity;
-    private final UsbManager usbManager;
-    private final Runnable runnable;
-    private int waitTimeMillis = 500;
-    private final Handler handler;
-    private final HashMap<String, UsbSerialDevice> serialDevices;
-    private final LinkedList<String> log;
-    private final HashMap<String, DecawaveParser> serialParsers;
+    private final DecawaveDeviceSource<?> deviceSource;
+    private final DecawaveDeviceConnector<?> connector;
+    /**
+     * Serializes the opening and closing of devices between the device source and shutdown
+     */
+    private final Object deviceLock = new Object();
+    private final ConcurrentHashMap<String, DecawaveDeviceConnector.Connection> serialDevices;
+    private final ConcurrentLinkedQueue<String> log;
+    private final ConcurrentHashMap<String, DecawaveParser> serialParsers;
+    private final ConcurrentHashMap<String, DecawaveParserThread> serialParserThreads;
+    private final ConcurrentHashMap<String, Integer> receiverIds;
+    /**
+     * Next id for receivers beyond the solver capacity, their ranges are exported but not solved
+     */
+    private final AtomicInteger nextReceiverId;
+    private final DecawaveAnchors anchors;
+    private final DecawaveSolver solver;
+    private final ConcurrentHashMap<String, DecawaveKalmanFilter> filters;
+    private final ConcurrentHashMap<String, DecawaveRangeFilter> rangeFilters;
+    private volatile double processNoise = DecawaveKalmanFilter.DEFAULT_PROCESS_NOISE;
+    private volatile double measurementNoise = DecawaveKalmanFilter.DEFAULT_MEASUREMENT_NOISE;
     private boolean debug = true;
+    private volatile boolean parserThreadsEnabled;
+    private volatile int backlogCapacity = DecawavePacketQueue.DEFAULT_CAPACITY;
+    private volatile int backlogPolicy = DecawaveParser.BACKLOG_DROP_OLDEST;
+
+    /**
+     * Creates a manager that opens the devices reported by the given source
+     * @param deviceSource The source of attached and detached devices
+     * @param connector The connector that opens and closes the devices
+     * @param <D> The type of the device handle
+     */
+    <D> DecawaveManager( DecawaveDeviceSource<D> deviceSource, final DecawaveDeviceConnector<D> connector ) {
+        serialParsers = new ConcurrentHashMap<>();
+        serialParserThreads = new ConcurrentHashMap<>();
+        serialDevices = new ConcurrentHashMap<>();
+        receiverIds = new ConcurrentHashMap<>();
+        nextReceiverId = new AtomicInteger( DecawaveSolver.MAX_RECEIVERS );
+        log = new ConcurrentLinkedQueue<>();
+        anchors = new DecawaveAnchors();
+        solver = new DecawaveSolver( anchors );
+        solver.start();
+        filters = new ConcurrentHashMap<>();
+        rangeFilters = new ConcurrentHashMap<>();
+        this.connector = connector;
+        this.deviceSource = deviceSource;
+        deviceSource.start( new DecawaveDeviceSource.Listener<D>() {
+            @Override
+            public void onDeviceAttached( String serial, D device ) {
+                if ( serial == null ) {
+                    log.add( "Ignored a device without a serial number" );
+                    return;
+                }
+                synchronized ( deviceLock ) {
+                    if ( !serialDevices.containsKey( serial ) )
+                        createSerial( connector, serial, device );
+                }
+            }
+
+            @Override
+            public void onDeviceDetached( String serial ) {
+                if ( serial == null )
+                    return;
+                synchronized ( deviceLock ) {
+                    if ( serialDevices.containsKey( serial ) )
+                        removeSerial( serial );
+                }
+            }
 
-    private DecawaveManager( Activity activity ) {
-        serialParsers = new HashMap<>();
-        serialDevices = new HashMap<>();
-        log = new LinkedList<>();
-        this.activity = activity;
-        this.usbManager = (UsbManager)activity.getSystemService( Context.USB_SERVICE );
-        runnable = new Runnable() {
-            @TargetApi( Build.VERSION_CODES.LOLLIPOP )
-            @RequiresApi( api = Build.VERSION_CODES.LOLLIPOP )
             @Override
-            public void run() {
-                DecawaveManager.this.checkUsbDevices();
-                handler.removeCallbacks( this );
-                handler.postDelayed( this, waitTimeMillis );
+            public void onDeviceError( String message ) {
+                log.add( message );
             }
-        };
-        handler = new Handler();
-        handler.removeCallbacks( runnable );
-        handler.post( runnable );
+        } );
     }
 
     /**
      * Gets the instance of the decawave manager.
-     * @param activity Can only be set once.
+     * @param activity Can only be set once (until {@link #shutdown()}).
      * @return The DecawaveManager instance.
      */
-    public static DecawaveManager getInstance( Activity activity ) {
+    public static synchronized DecawaveManager getInstance( Activity activity ) {
 
         if(instance == null) {
-            instance = new DecawaveManager( activity );
+            instance = new DecawaveManager( new DecawaveUsbDeviceSource( activity, vendorId, productId ), new DecawaveUsbConnector( activity ) );
         }
 
         return  instance;
 
     }
 
+    /**
+     * Closes every device, stops listening for attached devices and stops the solver.
+     * The next {@link #getInstance(Activity)} creates a new manager.
+     */
+    public void shutdown() {
+        deviceSource.stop();
+        synchronized ( deviceLock ) {
+            for ( String serial : serialDevices.keySet() )
+                removeSerial( serial );
+        }
+        if ( !solver.stop( SOLVER_STOP_TIMEOUT ) )
+            log.add( "Solver thread did not stop in time" );
+        synchronized ( DecawaveManager.class ) {
+            if ( instance == this )
+                instance = null;
+        }
+    }
+
     /**
      * Get the wait time for usb device checker
      * @return
+     * @deprecated Devices are found from attach and detach events, there is no polling
      */
+    @Deprecated
     public int getWaitTimeMillis() {
-        return waitTimeMillis;
+        return 0;
     }
 
     /**
      * Set the wait time for usb device checker
      * @param waitTimeMillis
+     * @deprecated Devices are found from attach and detach events, there is no polling
      */
+    @Deprecated
     public void setWaitTimeMillis( int waitTimeMillis ) {
-        if(waitTimeMillis <= 0)
-            waitTimeMillis = 1;
-        this.waitTimeMillis = waitTimeMillis;
     }
 
-    @RequiresApi( api = Build.VERSION_CODES.LOLLIPOP )
-    private void checkUsbDevices() {
+    /**
+     * Check if devices parse their data on a dedicated thread
+     * @return true if parser threads are used
+     */
+    public boolean isParserThreadsEnabled() {
+        return parserThreadsEnabled;
+    }
 
-        // Get all active usb devices attached
-        HashMap<String, UsbDevice> foundDevices;
-        try {
-            foundDevices = usbManager.getDeviceList();
-        }
-        catch ( Exception exception ) {
-            log.add( "Exception on usb manager: " + exception.getClass().getName() + ": " + exception.getMessage() );
-            return;
-        }
+    /**
+     * Set whether devices parse their data on a dedicated thread instead of the usb thread.
+     * With a parser thread the usb thread only hands the received bytes over and
+     * queues the next read at once. Applies to devices opened after the call.
+     * @param parserThreadsEnabled true to use parser threads
+     */
+    public void setParserThreadsEnabled( boolean parserThreadsEnabled ) {
+        this.parserThreadsEnabled = parserThreadsEnabled;
+    }
 
-        // Filter all devices that have the correct vendor and product id
-        HashMap<String, UsbDevice> filteredDevices = new HashMap<>();
-        for( String key : foundDevices.keySet() ) {
-            try {
-                UsbDevice device = foundDevices.get( key );
-                if ( device.getVendorId() == vendorId && device.getProductId() == productId ) {
-                    filteredDevices.put( device.getSerialNumber(), device );
-                }
-            }
-            catch ( Exception exception ) {
-                log.add( "Exception on usb device: " + exception.getClass().getName() + ": " + exception.getMessage() );
-                continue;
-            }
-        }
+    /**
+     * Get the latency timer set on devices that support one
+     * @return milliseconds or -1 if the device default is kept
+     */
+    public int getLatencyTimerMillis() {
+        return connector instanceof DecawaveUsbConnector ? ( (DecawaveUsbConnector)connector ).getLatencyTimerMillis() : -1;
+    }
 
-        // Determine which devices are new, previously unseen
-        HashSet<String> addables = new HashSet<>();
-        HashSet<String> removables = new HashSet<>();
-        try {
-            for ( String currentSerial : filteredDevices.keySet() ) {
-                if ( !serialDevices.containsKey( currentSerial ) )
-                    addables.add( currentSerial );
-            }
-        }
-        catch ( Exception exception ) {
-            log.add( "Exception on getting addables: " + exception.getClass().getName() + ": " + exception.getMessage() );
-            return;
-        }
-        try {
-            for ( String oldSerial : serialDevices.keySet() ) {
-                if ( !filteredDevices.containsKey( oldSerial ) ) {
-                    removables.add( oldSerial );
-                }
-            }
-        }
-        catch( Exception exception ) {
-            log.add( "Exception on getting removables: " + exception.getClass().getName() + ": " + exception.getMessage() );
-            return;
-        }
+    /**
+     * Set the latency timer of devices that hold received bytes in the chip (e.g. FTDI based receivers).
+     * A low value hands every range report over sooner, a high one moves bulk data with fewer transfers.
+     * Applies to devices opened after the call.
+     * @param latencyTimerMillis milliseconds (1 - 255) or -1 to keep the device default
+     */
+    public void setLatencyTimerMillis( int latencyTimerMillis ) {
+        if ( connector instanceof DecawaveUsbConnector )
+            ( (DecawaveUsbConnector)connector ).setLatencyTimerMillis( latencyTimerMillis );
+    }
 
-        // Remove devices that have disappeared
-        for( String serial : removables ) {
-            removeSerial(serial);
-        }
+    /**
+     * Get the size of one usb read transfer
+     * @return bytes or -1 if the driver default is kept
+     */
+    public int getReadTransferSize() {
+        return connector instanceof DecawaveUsbConnector ? ( (DecawaveUsbConnector)connector ).getReadTransferSize() : -1;
+    }
 
-        // Add new devices
-        for( String serial : addables ) {
-            createSerial( serial, filteredDevices.get(serial));
-        }
+    /**
+     * Set the size of one usb read transfer. Applies to devices opened after the call.
+     * @param readTransferSize bytes or -1 to keep the driver default
+     */
+    public void setReadTransferSize( int readTransferSize ) {
+        if ( connector instanceof DecawaveUsbConnector )
+            ( (DecawaveUsbConnector)connector ).setReadTransferSize( readTransferSize );
+    }
+
+    /**
+     * Get the count of packets a parser keeps when nobody takes them
+     * @return packet count
+     */
+    public int getBacklogCapacity() {
+        return backlogCapacity;
+    }
+
+    /**
+     * Set the count of packets a parser keeps when nobody takes them (e.g. while a scene loads).
+     * The memory of the backlog is fixed, so a long pause costs no more than a short one.
+     * Applies to devices opened after the call.
+     * @param backlogCapacity packet count (rounded up to a power of two)
+     */
+    public void setBacklogCapacity( int backlogCapacity ) {
+        this.backlogCapacity = backlogCapacity;
+    }
+
+    /**
+     * Get what happens to a full packet backlog
+     * @return {@link DecawaveParser#BACKLOG_DROP_OLDEST} or {@link DecawaveParser#BACKLOG_COALESCE_PER_ANCHOR}
+     */
+    public int getBacklogPolicy() {
+        return backlogPolicy;
+    }
 
+    /**
+     * Set what happens to a full packet backlog, for every device
+     * @param backlogPolicy {@link DecawaveParser#BACKLOG_DROP_OLDEST} or {@link DecawaveParser#BACKLOG_COALESCE_PER_ANCHOR}
+     * @throws IllegalArgumentException if the policy is unknown
+     */
+    public void setBacklogPolicy( int backlogPolicy ) {
+        if ( backlogPolicy != DecawaveParser.BACKLOG_DROP_OLDEST && backlogPolicy != DecawaveParser.BACKLOG_COALESCE_PER_ANCHOR )
+            throw new IllegalArgumentException( "Unknown backlog policy: " + backlogPolicy );
+        for ( DecawaveParser parser : serialParsers.values() )
+            parser.setBacklogPolicy( backlogPolicy );
+        this.backlogPolicy = backlogPolicy;
+    }
 
+    /**
+     * Looks through the attached devices again and opens those that are not open yet
+     * (e.g. after the usb permission has been granted)
+     */
+    public void refreshDevices() {
+        deviceSource.refresh();
     }
 
     private void removeSerial( String serial ) {
         // try to shutdown the device
         shutdownDevice(serial);
+        DecawaveParserThread parserThread = serialParserThreads.remove( serial );
+        if ( parserThread != null && !parserThread.stopParsing( PARSER_STOP_TIMEOUT ) )
+            log.add( "Parser thread of \"" + serial + "\" did not stop in time" );
+        solver.clear( getReceiverId( serial ) );
         // remove device
-        try {
-            serialDevices.remove( serial );
-            serialParsers.remove( serial );
-        }
-        catch ( Exception exception ) {
-            log.add( "Exception on removing serial: " + exception.getClass().getName() + ": " + exception.getMessage() );
-            return;
-        }
+        serialDevices.remove( serial );
+        serialParsers.remove( serial );
         log.add( "Disconnected device \"" + serial + "\"" );
     }
+
     private void shutdownDevice( String serial ) {
-        UsbSerialDevice device;
-        try {
-            device = serialDevices.get(serial);
-        }
-        catch ( Exception exception ) {
-            log.add( "Exception on device get: " + exception.getClass().getName() + ": " + exception.getMessage() );
+        DecawaveDeviceConnector.Connection device = serialDevices.get( serial );
+        if ( device == null )
             return;
-        }
-
         try {
             device.close();
         }
@@ -204,99 +302,140 @@ public class DecawaveManager {
 
     }
 
-    private void createSerial( final String serial, UsbDevice usbDevice ) {
-
-        UsbDeviceConnection connection;
-        UsbSerialDevice serialDevice;
-        // initialize connection to device
-        try {
-            connection = usbManager.openDevice( usbDevice );
-        }
-        catch ( Exception exception ) {
-            log.add( "Exception on usb connection creation: " + exception.getClass().getName() + ": " + exception.getMessage() );
-            return;
+    /**
+     * Gives a serial number a receiver id. A known serial keeps its id. A new one gets the
+     * lowest free id the solver can hold, or else the id of a disconnected receiver.
+     * A receiver that got an id beyond the solver before moves into the solver once an id is free.
+     * Called under the device lock.
+     * @param serial The serial number of device
+     * @return receiver id
+     */
+    private int assignReceiverId( String serial ) {
+        Integer known = receiverIds.get( serial );
+        if ( known != null && known < DecawaveSolver.MAX_RECEIVERS )
+            return known;
+        boolean[] used = new boolean[DecawaveSolver.MAX_RECEIVERS];
+        for ( int id : receiverIds.values() ) {
+            if ( id < used.length )
+                used[id] = true;
         }
-
-        // initialize serial contract
-        try {
-            serialDevice = UsbSerialDevice.createUsbSerialDevice( usbDevice, connection );
+        for ( int id = 0; id < used.length; id++ ) {
+            if ( !used[id] ) {
+                receiverIds.put( serial, id );
+                return id;
+            }
         }
-        catch ( Exception exception ) {
-            log.add( "Exception on serial creation: " + exception.getClass().getName() + ": " + exception.getMessage() );
-            return;
+        // every id is taken, reuse the id of a receiver that is not connected
+        for ( Map.Entry<String, Integer> entry : receiverIds.entrySet() ) {
+            int id = entry.getValue();
+            if ( id < used.length && !serialDevices.containsKey( entry.getKey() ) ) {
+                receiverIds.remove( entry.getKey() );
+                solver.clear( id );
+                receiverIds.put( serial, id );
+                log.add( "Receiver id " + id + " moved from \"" + entry.getKey() + "\" to \"" + serial + "\"" );
+                return id;
+            }
         }
+        int id = known != null ? known : nextReceiverId.getAndIncrement();
+        receiverIds.put( serial, id );
+        log.add( "More than " + DecawaveSolver.MAX_RECEIVERS + " receivers connected, positions of \"" + serial + "\" are not solved" );
+        return id;
+    }
 
-        // open serial connection
-        try {
-            if(!serialDevice.open()) {
-                log.add( "Could not open device " + serial );
-                return;
+    private <D> void createSerial( DecawaveDeviceConnector<D> connector, final String serial, D device ) {
+
+        final int receiverId = assignReceiverId( serial );
+        final DecawaveRangeFilter rangeFilter = getRangeFilter( serial );
+        final DecawaveKalmanFilter filter = getFilter( serial );
+        final double[] fix = new double[4];
+        // the parser is only fed by the usb thread or the parser thread of this device
+        final DecawaveParser parser = new DecawaveParser( serial, backlogCapacity, backlogPolicy );
+        parser.setRangeListener( new DecawaveRangeListener() {
+            @Override
+            public void onRange( int anchorId, int distanceInMillimeters, long timestampNanos ) {
+                // implausible ranges (e.g. reflections) never reach the solver or the filter
+                if ( !rangeFilter.accept( anchorId, distanceInMillimeters, timestampNanos ) )
+                    return;
+                solver.onRange( receiverId, anchorId, distanceInMillimeters, timestampNanos );
+                // the filter starts from a solver fix and then follows every single range
+                if ( !filter.update( anchorId, distanceInMillimeters, timestampNanos ) && !filter.isInitialized() ) {
+                    long fixTimestamp = solver.getPosition( receiverId, fix );
+                    if ( fixTimestamp != 0 && timestampNanos - fixTimestamp < FILTER_MAX_FIX_AGE )
+                        filter.initialize( fix[0], fix[1], fix[2], fixTimestamp );
+                }
             }
-        }
-        catch ( Exception exception ) {
-            log.add( "Exception on open query: " + exception.getClass().getName() + ": " + exception.getMessage() );
-            return;
-        }
+        } );
+        final DecawaveParserThread parserThread = parserThreadsEnabled ? new DecawaveParserThread( parser, log ) : null;
+        if ( parserThread != null )
+            parserThread.start();
 
-        // default settings and data callback
+        DecawaveDeviceConnector.Connection connection;
         try {
-            serialDevice.setBaudRate( 115200 );
-            serialDevice.setDataBits( UsbSerialInterface.DATA_BITS_8);
-            serialDevice.setStopBits(UsbSerialInterface.STOP_BITS_1);
-            serialDevice.setParity(UsbSerialInterface.PARITY_NONE);
-            serialDevice.setFlowControl(UsbSerialInterface.FLOW_CONTROL_OFF);
-            serialDevice.read( new UsbSerialInterface.UsbReadCallback() {
+            connection = connector.open( serial, device, new DecawaveDeviceConnector.Listener() {
                 @Override
-                public void onReceivedData( byte[] bytes ) {
+                public void onReceivedData( ByteBuffer bytes ) {
                     try {
-                        if ( !serialParsers.containsKey( serial ) ) {
-                            serialParsers.put( serial, new DecawaveParser( serial, 4092 ) );
-                        }
-                        serialParsers.get( serial ).put( bytes );
+                        if ( parserThread != null )
+                            parserThread.offer( bytes );
+                        else
+                            parser.put( bytes );
                     }
                     catch ( Exception exception ) {
                         log.add( "Exception on byte parser: " + exception.getClass().getName() + ": " + exception.getMessage() );
                     }
                 }
+
+                @Override
+                public void onError( String message ) {
+                    log.add( message );
+                }
             } );
         }
         catch ( Exception exception ) {
-            log.add( "Exception on setup: " + exception.getClass().getName() + ": " + exception.getMessage() );
-            try {
-                serialDevice.close();
-            }
-            catch ( Exception closingException ) {
-                log.add( "Exception on shutdown: " + closingException.getClass().getName() + ": " + closingException.getMessage() );
-            }
+            log.add( "Exception on device opening: " + exception.getClass().getName() + ": " + exception.getMessage() );
+            connection = null;
+        }
+        if ( connection == null ) {
+            if ( parserThread != null )
+                parserThread.stopParsing();
             return;
         }
 
         // add serial connection to list
-        try {
-            serialDevices.put( serial, serialDevice );
-        }
-        catch ( Exception exception ) {
-            log.add( "Exception on serial adding: " + exception.getClass().getName() + ": " + exception.getMessage() );
-        }
-        if ( !serialParsers.containsKey( serial ) ) {
-            serialParsers.put( serial, new DecawaveParser( serial, 4092 ) );
-        }
+        serialParsers.put( serial, parser );
+        if ( parserThread != null )
+            serialParserThreads.put( serial, parserThread );
+        serialDevices.put( serial, connection );
 
     }
 
     /**
      * Get first message from log pool
-     * @return
+     * @return the message or null if the pool is empty
      */
     public String popLogMessage() {
-        return log.pop();
+        return log.poll();
     }
 
     /**
      * Check if there is a message in log pool
      * @return true if has message
      */
-    public boolean hasLogMessage() { return log.size() > 0; }
+    public boolean hasLogMessage() { return !log.isEmpty(); }
+
+    /**
+     * Get the count of driver and parser threads that are running.
+     * It should drop back when devices are disconnected, a growing count means threads are leaking.
+     * @return number of running threads
+     */
+    public int liveThreadCount() {
+        int count = connector.getLiveThreadCount();
+        for ( DecawaveParserThread parserThread : serialParserThreads.values() ) {
+            if ( parserThread.isAlive() )
+                count++;
+        }
+        return count;
+    }
 
     /**
      * Get the active device count
@@ -311,11 +450,7 @@ public class DecawaveManager {
      * @return an array of serial device serial numbers
      */
     public String[] deviceSerials() {
-        String[] serials = new String[serialParsers.size()];
-        int index = 0;
-        for(String serial : serialParsers.keySet())
-            serials[index++] = serial;
-        return serials;
+        return serialParsers.keySet().toArray( new String[0] );
     }
 
     /**
@@ -324,7 +459,144 @@ public class DecawaveManager {
      * @return Serial parser
      */
     public DecawaveParser getParser( String serial ) {
-        return serialParsers.containsKey( serial ) ? serialParsers.get(serial) : null;
+        return serialParsers.get( serial );
+    }
+
+    /**
+     * Get the latest range of every anchor seen by a device.
+     * Reading the table never waits and does not take packets from the parser.
+     * @param serial The serial number of device
+     * @return latest range table or null if the device is not connected
+     */
+    public DecawaveRangeTable getLatestRanges( String serial ) {
+        DecawaveParser parser = serialParsers.get( serial );
+        return parser != null ? parser.getLatestRanges() : null;
+    }
+
+    /**
+     * Get the receiver id used in exported range records.
+     * The id of a serial number stays the same when the device is reconnected,
+     * unless its id was given to a new receiver while it was disconnected.
+     * @param serial The serial number of device
+     * @return Receiver id or -1 if the device has not been seen
+     */
+    public int getReceiverId( String serial ) {
+        Integer id = receiverIds.get( serial );
+        return id != null ? id : -1;
+    }
+
+    /**
+     * Writes the pending ranges of every receiver into the buffer and removes them from the parsers.
+     * Each range is one little-endian record of {@link DecawavePacketQueue#RECORD_SIZE} bytes,
+     * written from the position of the buffer onwards. Pass the same direct buffer every frame
+     * so native code can read the records without further calls.
+     * @param target The buffer to write into
+     * @return the count of records written
+     */
+    public int exportRanges( ByteBuffer target ) {
+        int count = 0;
+        for ( Map.Entry<String, DecawaveParser> entry : serialParsers.entrySet() ) {
+            count += entry.getValue().drainTo( target, getReceiverId( entry.getKey() ) );
+        }
+        return count;
+    }
+
+    /**
+     * Get the anchor positions used by the position solver
+     * @return anchor table
+     */
+    public DecawaveAnchors getAnchors() {
+        return anchors;
+    }
+
+    /**
+     * Get the solver that turns the ranges of every receiver into a position
+     * @return position solver
+     */
+    public DecawaveSolver getSolver() {
+        return solver;
+    }
+
+    /**
+     * Sets the position of an anchor for the position solver
+     * @param anchorId The id of the anchor (0 - 255)
+     * @param x The x coordinate in meters
+     * @param y The y coordinate in meters
+     * @param z The z coordinate in meters
+     */
+    public void setAnchorPosition( int anchorId, double x, double y, double z ) {
+        anchors.setPosition( anchorId, x, y, z );
+    }
+
+    /**
+     * Get the latest solved position of a receiver. Never waits for a solve.
+     * @param serial The serial number of device
+     * @param out Receives x, y, z and the rms range residual, all in meters
+     * @return the arrival time of the newest range used from {@link System#nanoTime()}, or 0 if there is no position
+     */
+    public long getPosition( String serial, double[] out ) {
+        return solver.getPosition( getReceiverId( serial ), out );
+    }
+
+    /**
+     * Get the position filter of a receiver. The filter is kept when the device is reconnected.
+     * @param serial The serial number of device
+     * @return position filter
+     */
+    public DecawaveKalmanFilter getFilter( String serial ) {
+        DecawaveKalmanFilter filter = filters.get( serial );
+        if ( filter == null ) {
+            filter = new DecawaveKalmanFilter( anchors );
+            filter.setProcessNoise( processNoise );
+            filter.setMeasurementNoise( measurementNoise );
+            DecawaveKalmanFilter previous = filters.putIfAbsent( serial, filter );
+            if ( previous != null )
+                filter = previous;
+        }
+        return filter;
+    }
+
+    /**
+     * Get the outlier filter of a receiver, e.g. to read its rejection counters.
+     * The filter is kept when the device is reconnected.
+     * @param serial The serial number of device
+     * @return range filter
+     */
+    public DecawaveRangeFilter getRangeFilter( String serial ) {
+        DecawaveRangeFilter rangeFilter = rangeFilters.get( serial );
+        if ( rangeFilter == null ) {
+            rangeFilter = new DecawaveRangeFilter();
+            DecawaveRangeFilter previous = rangeFilters.putIfAbsent( serial, rangeFilter );
+            if ( previous != null )
+                rangeFilter = previous;
+        }
+        return rangeFilter;
+    }
+
+    /**
+     * Set the noise of every position filter, see {@link DecawaveKalmanFilter}
+     * @param processNoise The spectral density of the random acceleration in m^2/s^3
+     * @param measurementNoise The standard deviation of a range in meters
+     */
+    public void setFilterNoise( double processNoise, double measurementNoise ) {
+        this.processNoise = processNoise;
+        this.measurementNoise = measurementNoise;
+        for ( DecawaveKalmanFilter filter : filters.values() ) {
+            filter.setProcessNoise( processNoise );
+            filter.setMeasurementNoise( measurementNoise );
+        }
+    }
+
+    /**
+     * Get the filtered position of a receiver predicted for a given time, e.g. the display time of the frame
+     * @param serial The serial number of device
+     * @param timestampNanos The time to predict for, from {@link System#nanoTime()}
+     * @param out Receives x, y, z (meters) and, if there is room, vx, vy, vz (meters per second)
+     * @return the time of the last filter update, or 0 if there is no filtered position
+     */
+    public long getFilteredPosition( String serial, long timestampNanos, double[] out ) {
+        DecawaveKalmanFilter filter = filters.get( serial );
+        return filter != null ? filter.predict( timestampNanos, out ) : 0;
     }
 
 }
@@ -26,6 +26,16 @@ public class DecawavePacket {
 
     private final Date timestamp;
 
+    /**
+     * Get the arrival time of the current value
+     * @return A monotonic timestamp in nanoseconds from {@link System#nanoTime()}
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    private final long timestampNanos;
+
     /**
      * Get the id of the anchor
      * @return The id number of the anchor
@@ -52,7 +62,18 @@ public class DecawavePacket {
      * @param distanceInMillimeters The distance from the anchor in millimeters
      */
     public DecawavePacket( int anchorId, int distanceInMillimeters ) {
-        this.timestamp = new Date();
+        this( anchorId, distanceInMillimeters, System.nanoTime() );
+    }
+
+    /**
+     * Create a new DecawavePacket that arrived earlier
+     * @param anchorId The id of the anchor that sent the packet
+     * @param distanceInMillimeters The distance from the anchor in millimeters
+     * @param timestampNanos The arrival time of the packet from {@link System#nanoTime()}
+     */
+    public DecawavePacket( int anchorId, int distanceInMillimeters, long timestampNanos ) {
+        this.timestampNanos = timestampNanos;
+        this.timestamp = new Date( System.currentTimeMillis() - ( System.nanoTime() - timestampNanos ) / 1000000L );
         this.anchorId = anchorId;
         this.distanceInMillimeters = distanceInMillimeters;
     }
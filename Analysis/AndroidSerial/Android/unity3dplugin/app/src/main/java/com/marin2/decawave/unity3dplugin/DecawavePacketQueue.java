@@ -0,0 +1,336 @@
+package com.marin2.decawave.unity3dplugin;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-capacity queue of range results stored in parallel primitive arrays.
+ * Nothing is allocated after construction. When the queue is full the oldest
+ * entry is overwritten, so the newest ranges are always available.
+ *
+ * The queue is lock-free for one producer thread (the one calling {@link #add})
+ * and one consumer thread (the one taking packets out). The producer never waits
+ * for the consumer: every slot carries the position it was written for, and the
+ * consumer skips a slot that was overwritten while it was being read. The consumer
+ * counts every packet it never got to take as dropped.
+ */
+public class DecawavePacketQueue {
+
+    /**
+     * The default capacity of the queue (rounded to a power of two)
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Layout of one exported range record (little-endian):
+     * receiver id (int32), anchor id (int32), distance in millimeters (int32),
+     * reserved (int32, always 0) and arrival time in nanoseconds (int64)
+     */
+    public static final int RECORD_RECEIVER_ID_OFFSET = 0;
+    public static final int RECORD_ANCHOR_ID_OFFSET = 4;
+    public static final int RECORD_DISTANCE_OFFSET = 8;
+    public static final int RECORD_RESERVED_OFFSET = 12;
+    public static final int RECORD_TIMESTAMP_OFFSET = 16;
+    public static final int RECORD_SIZE = 24;
+
+    /**
+     * The queued values, one index per packet. Anchor id and distance are
+     * packed into one long so a slot is read with as few loads as possible.
+     */
+    private final AtomicLongArray values;
+    private final AtomicLongArray timestamps;
+    /**
+     * The running position each slot was last written for (-1 while it is being written)
+     */
+    private final AtomicLongArray positions;
+
+    /**
+     * Bit mask used to wrap the head and tail counters into the arrays
+     */
+    private final int mask;
+
+    /**
+     * Running position of the oldest unread packet (written by the consumer only)
+     */
+    private volatile long head;
+    /**
+     * Running position after the newest queued packet (written by the producer only)
+     */
+    private final AtomicLong tail;
+
+    /**
+     * The packet taken by the last successful {@link #next()} (consumer only)
+     */
+    private int nextAnchorId;
+    private int nextDistance;
+    private long nextTimestamp;
+    /**
+     * The arrival time of the newest packet taken so far (consumer only, 0 for none)
+     */
+    private long lastTakenTimestamp;
+
+    /**
+     * Packets put in place of the backlog by {@link #replaceBacklog}, taken before the ring.
+     * Written by the consumer only; the count is volatile so the age can be read from other threads.
+     */
+    private final int[] pendingAnchorIds = new int[DecawaveRangeTable.MAX_ANCHORS];
+    private final int[] pendingDistances = new int[DecawaveRangeTable.MAX_ANCHORS];
+    private final long[] pendingTimestamps = new long[DecawaveRangeTable.MAX_ANCHORS];
+    private volatile int pendingIndex;
+    private volatile int pendingCount;
+
+    /**
+     * Count of packets lost before the consumer took them (written by the consumer only)
+     */
+    private volatile long droppedCount;
+
+    /**
+     * Creates a queue with the default capacity
+     */
+    public DecawavePacketQueue() {
+        this( DEFAULT_CAPACITY );
+    }
+
+    /**
+     * Creates a queue
+     * @param capacity The count of packets the queue can hold. The value is rounded up to the next power of two
+     */
+    public DecawavePacketQueue( int capacity ) {
+        int size = Integer.highestOneBit( Math.max( 2, capacity ) - 1 ) << 1;
+        values = new AtomicLongArray( size );
+        timestamps = new AtomicLongArray( size );
+        positions = new AtomicLongArray( size );
+        for ( int i = 0; i < size; i++ )
+            positions.set( i, -1 );
+        mask = size - 1;
+        tail = new AtomicLong();
+    }
+
+    /**
+     * Get the count of packets the queue can hold
+     * @return capacity of the queue
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Get the count of packets in the queue
+     * @return number of packets
+     */
+    public int size() {
+        return (int)Math.min( tail.get() - head, mask + 1 ) + pendingCount - pendingIndex;
+    }
+
+    /**
+     * Checks if there are any packets in the queue
+     * @return true if the queue is empty
+     */
+    public boolean isEmpty() {
+        return tail.get() == head && pendingIndex == pendingCount;
+    }
+
+    /**
+     * Checks if the producer has overwritten packets the consumer has not taken yet.
+     * Must only be called from the consumer thread.
+     * @return true if packets have been lost since the last take
+     */
+    public boolean isOverrun() {
+        return tail.get() - head > mask + 1;
+    }
+
+    /**
+     * Get the count of packets that were lost or replaced before the consumer took them.
+     * Counted by the consumer when it takes packets, so an overrun shows up on the next take.
+     * @return dropped packet count
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Get the arrival time of the newest packet taken so far. Must only be called from the consumer thread.
+     * @return a timestamp from {@link System#nanoTime()} or 0 if nothing has been taken
+     */
+    public long getLastTakenTimestamp() {
+        return lastTakenTimestamp;
+    }
+
+    /**
+     * Get the arrival time of the oldest packet in the queue. Can be called from any thread,
+     * the value is approximate while the consumer is taking packets.
+     * @return a timestamp from {@link System#nanoTime()} or 0 if the queue is empty
+     */
+    public long getOldestTimestamp() {
+        int index = pendingIndex;
+        if ( index < pendingCount )
+            return pendingTimestamps[index];
+        long h = head;
+        long t = tail.get();
+        if ( t - h > mask + 1 )
+            h = t - ( mask + 1 );
+        for ( ; h != t; h++ ) {
+            int slot = (int)h & mask;
+            long timestamp = timestamps.get( slot );
+            if ( positions.get( slot ) == h )
+                return timestamp;
+        }
+        return 0;
+    }
+
+    /**
+     * Drops every packet in the queue and puts the given packets in their place, oldest first.
+     * Used to coalesce a backlog that overran into one packet per anchor, so at most
+     * {@link DecawaveRangeTable#MAX_ANCHORS} packets are kept (the newest ones).
+     * The given packets stand for packets of the queue, so only the rest count as dropped.
+     * Must only be called from the consumer thread.
+     * @param anchorIds The anchor ids of the new packets
+     * @param distances The distances of the new packets in millimeters
+     * @param timestamps The arrival times of the new packets from {@link System#nanoTime()}
+     * @param count The count of new packets
+     */
+    public void replaceBacklog( int[] anchorIds, int[] distances, long[] timestamps, int count ) {
+        long t = tail.get();
+        long queued = t - head + pendingCount - pendingIndex;
+        head = t;
+        // only the newest packets fit
+        int skipped = Math.max( 0, count - pendingAnchorIds.length );
+        count -= skipped;
+        droppedCount += Math.max( 0, queued - count );
+        System.arraycopy( anchorIds, skipped, pendingAnchorIds, 0, count );
+        System.arraycopy( distances, skipped, pendingDistances, 0, count );
+        System.arraycopy( timestamps, skipped, pendingTimestamps, 0, count );
+        pendingIndex = 0;
+        pendingCount = count;
+    }
+
+    /**
+     * Adds a packet to the end of the queue. If the queue is full the oldest packet is dropped.
+     * Must only be called from the producer thread.
+     * @param anchorId The id of the anchor
+     * @param distanceInMillimeters The distance from the anchor in millimeters
+     * @param timestampNanos The arrival time of the packet from {@link System#nanoTime()}
+     */
+    public void add( int anchorId, int distanceInMillimeters, long timestampNanos ) {
+        long position = tail.get();
+        int index = (int)position & mask;
+        positions.lazySet( index, -1 );
+        values.lazySet( index, ( (long)anchorId << 32 ) | ( distanceInMillimeters & 0xffffffffL ) );
+        timestamps.lazySet( index, timestampNanos );
+        positions.lazySet( index, position );
+        tail.lazySet( position + 1 );
+    }
+
+    /**
+     * Takes the oldest readable packet into the next* fields (consumer only)
+     * @return true if a packet was taken, false if the queue is empty
+     */
+    private boolean next() {
+        int pending = pendingIndex;
+        if ( pending < pendingCount ) {
+            nextAnchorId = pendingAnchorIds[pending];
+            nextDistance = pendingDistances[pending];
+            nextTimestamp = pendingTimestamps[pending];
+            lastTakenTimestamp = nextTimestamp;
+            pendingIndex = pending + 1;
+            return true;
+        }
+        long h = head;
+        long t = tail.get();
+        while ( h != t ) {
+            // Jump over the packets the producer has already overwritten
+            if ( t - h > mask + 1 ) {
+                droppedCount += t - ( mask + 1 ) - h;
+                h = t - ( mask + 1 );
+            }
+            int index = (int)h & mask;
+            long position = positions.get( index );
+            long value = values.get( index );
+            long timestamp = timestamps.get( index );
+            boolean intact = position == h && positions.get( index ) == h;
+            h++;
+            if ( intact ) {
+                head = h;
+                nextAnchorId = (int)( value >> 32 );
+                nextDistance = (int)value;
+                nextTimestamp = timestamp;
+                lastTakenTimestamp = timestamp;
+                return true;
+            }
+            droppedCount++;
+            t = tail.get();
+        }
+        head = h;
+        return false;
+    }
+
+    /**
+     * Moves as many packets as fit into the given arrays, oldest first
+     * @param anchorIds Receives the anchor ids
+     * @param distances Receives the distances in millimeters
+     * @param timestamps Receives the arrival times from {@link System#nanoTime()}
+     * @return the count of packets written to the arrays
+     */
+    public int drainTo( int[] anchorIds, int[] distances, long[] timestamps ) {
+        return drainTo( anchorIds, distances, timestamps, 0,
+                Math.min( anchorIds.length, Math.min( distances.length, timestamps.length ) ) );
+    }
+
+    /**
+     * Moves packets into the given arrays, oldest first. Must only be called from the consumer thread.
+     * @param anchorIds Receives the anchor ids
+     * @param distances Receives the distances in millimeters
+     * @param timestamps Receives the arrival times from {@link System#nanoTime()}
+     * @param offset The first array index to write
+     * @param maxCount The maximum count of packets to move
+     * @return the count of packets written to the arrays
+     */
+    public int drainTo( int[] anchorIds, int[] distances, long[] timestamps, int offset, int maxCount ) {
+        int count = 0;
+        while ( count < maxCount && next() ) {
+            anchorIds[offset + count] = nextAnchorId;
+            distances[offset + count] = nextDistance;
+            timestamps[offset + count] = nextTimestamp;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Moves as many packets as fit into the buffer as range records, oldest first.
+     * The records are written from the position of the buffer onwards, the position
+     * is advanced past them and the byte order of the buffer is set to little-endian.
+     * Must only be called from the consumer thread.
+     * @param target The buffer to write into, normally a direct buffer shared with native code
+     * @param receiverId The receiver id written into every record
+     * @return the count of records written
+     */
+    public int drainTo( ByteBuffer target, int receiverId ) {
+        target.order( ByteOrder.LITTLE_ENDIAN );
+        int position = target.position();
+        int maxCount = target.remaining() / RECORD_SIZE;
+        int count = 0;
+        while ( count < maxCount && next() ) {
+            target.putInt( position + RECORD_RECEIVER_ID_OFFSET, receiverId );
+            target.putInt( position + RECORD_ANCHOR_ID_OFFSET, nextAnchorId );
+            target.putInt( position + RECORD_DISTANCE_OFFSET, nextDistance );
+            target.putInt( position + RECORD_RESERVED_OFFSET, 0 );
+            target.putLong( position + RECORD_TIMESTAMP_OFFSET, nextTimestamp );
+            position += RECORD_SIZE;
+            count++;
+        }
+        target.position( position );
+        return count;
+    }
+
+    /**
+     * Removes every packet from the queue. Must only be called from the consumer thread.
+     */
+    public void clear() {
+        head = tail.get();
+        pendingIndex = pendingCount;
+    }
+
+}
@@ -1,266 +1,420 @@
 package com.marin2.decawave.unity3dplugin;
 
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
 
 /**
  * Created by mhjtas on 19.1.2017.
  * Copyright: University of Turku & Mika Taskinen
+ *
+ * Data is put in from one thread at a time. Packets may be taken from any thread:
+ * {@link #popPacket()} and both drainTo methods take the consumer lock, so the
+ * consumer side of the backlog is only ever used by one of them at a time.
  */
 public class DecawaveParser {
 
     /**
      * The minimum buffer needs to be at least 4096
+     * @deprecated The parser no longer buffers raw serial data
      */
+    @Deprecated
     public static final int MINIMUM_BUFFER = 4096;
 
     /**
-     * The buffer for incoming serial data
+     * What happens to the packet backlog when nobody takes packets and it fills up.
+     * BACKLOG_DROP_OLDEST drops the oldest packets and keeps the newest ones in order.
+     * BACKLOG_COALESCE_PER_ANCHOR replaces an overrun backlog with the latest range of
+     * every anchor that has a newer range than the last packet taken.
      */
-    private final byte[] buffer;
-    /**
-     * Active count of the buffer
-     */
-    private int bufferCount;
+    public static final int BACKLOG_DROP_OLDEST = 0;
+    public static final int BACKLOG_COALESCE_PER_ANCHOR = 1;
 
     /**
      * The serial characters related to this parser
      */
     private final String serial;
     /**
-     * Temporary holding station for packets
+     * Temporary holding station for packets.
+     * {@link #put} is called from one thread (the usb thread) and packets
+     * are taken out under {@link #consumerLock}, never blocking the producer.
      */
-    private final LinkedList<DecawavePacket> packets;
+    private final DecawavePacketQueue packets;
+    /**
+     * The latest range of every anchor, kept however long nobody takes packets
+     */
+    private final DecawaveRangeTable latestRanges;
+    /**
+     * Serializes the taking of packets, which is single consumer in the queue
+     */
+    private final Object consumerLock = new Object();
+    /**
+     * Single slot arrays for taking packets one by one
+     */
+    private final int[] popAnchorId = new int[1];
+    private final int[] popDistance = new int[1];
+    private final long[] popTimestamp = new long[1];
+    /**
+     * Scratch arrays for coalescing an overrun backlog: a snapshot of the
+     * latest ranges and the packets made of them (consumer only)
+     */
+    private final int[] snapshotDistances = new int[DecawaveRangeTable.MAX_ANCHORS];
+    private final long[] snapshotTimestamps = new long[DecawaveRangeTable.MAX_ANCHORS];
+    private final int[] coalesceAnchorIds = new int[DecawaveRangeTable.MAX_ANCHORS];
+    private final int[] coalesceDistances = new int[DecawaveRangeTable.MAX_ANCHORS];
+    private final long[] coalesceTimestamps = new long[DecawaveRangeTable.MAX_ANCHORS];
+    private volatile int backlogPolicy = BACKLOG_DROP_OLDEST;
+
+    /**
+     * The layout of a range packet. Every byte of the frame has one character:
+     * '#' is a hex digit, ' ' is a separator that can be any byte and
+     * everything else is a literal character that must match.
+     */
+    private static final byte[] FRAME = "ma## t## ######## ######## #### ## ######## #### #### t#".getBytes();
 
     /**
-     * These (final) fields are for defining the packet
-     * and are used to parsing the needed data out
+     * Frame positions of the values that are parsed out of the packet
+     * (start inclusive, end exclusive)
      */
-    private final int packet_ma_length = 4;
-    private final int packet_t_length = 3;
-    private final int packet_val1_length = 8;
-    private final int packet_val2_length = 8;
-    private final int packet_0f_length = 4;
-    private final int packet_pair_length = 2;
-    private final int packet_val3_length = 8;
-    private final int packet_4044_1_length = 4;
-    private final int packet_4044_2_length = 4;
-    private final int packet_t2_length = 2;
-    private final int packetLength = packet_ma_length + 1 + packet_t_length + 1 + packet_val1_length + 1 + packet_val2_length + 1 + packet_0f_length + 1 + packet_pair_length + 1
-            + packet_val3_length + 1 + packet_4044_1_length + 1 + packet_4044_2_length + 1 + packet_t2_length;
+    private static final int ANCHOR_ID_START = 2;
+    private static final int ANCHOR_ID_END = 4;
+    private static final int DISTANCE_START = 9;
+    private static final int DISTANCE_END = 17;
 
     /**
-     * Temporary data holders for the functions.
-     * These values will be made into packet when done
+     * Position of the next expected byte in the frame.
+     * This is kept between calls so a frame can be split over many chunks.
      */
-    private int deviceId;
-    private int distanceInMillimeters;
+    private int state;
+
+    /**
+     * The bytes of the frame matched so far. When a byte does not match, a new frame
+     * may already have started inside them (e.g. an 'm' in a separator position),
+     * so they are scanned again from the byte after the failed start.
+     */
+    private final byte[] frameBytes = new byte[FRAME.length];
+
+    /**
+     * Receives every packet as soon as it is found (may be null)
+     */
+    private volatile DecawaveRangeListener rangeListener;
 
     /**
      * Creates a DecawaveParser
      * @param serial The serial characters that define the device behing the parser
      */
     public DecawaveParser( String serial ) {
+        this( serial, DecawavePacketQueue.DEFAULT_CAPACITY, BACKLOG_DROP_OLDEST );
+    }
+
+    /**
+     * Creates a DecawaveParser with a custom packet backlog
+     * @param serial The serial characters that define the device behing the parser
+     * @param backlogCapacity The count of packets kept when nobody takes them (rounded up to a power of two)
+     * @param backlogPolicy BACKLOG_DROP_OLDEST or BACKLOG_COALESCE_PER_ANCHOR
+     */
+    public DecawaveParser( String serial, int backlogCapacity, int backlogPolicy ) {
         this.serial = serial;
-        packets = new LinkedList<>();
-        buffer = new byte[MINIMUM_BUFFER];
+        packets = new DecawavePacketQueue( backlogCapacity );
+        latestRanges = new DecawaveRangeTable();
+        setBacklogPolicy( backlogPolicy );
     }
 
     /**
      * Creates a DecawaveParser with custom bufferCapacity
      * @param serial The serial characters that define the device behing the parser
-     * @param bufferCapacity The custom buffer capacity. The minimum value cannot be lowered
+     * @param bufferCapacity Ignored
+     * @deprecated The parser keeps only its frame position, use {@link #DecawaveParser(String)}
      */
+    @Deprecated
     public DecawaveParser( String serial, int bufferCapacity ) {
-        this.serial = serial;
-        packets = new LinkedList<>();
-        buffer = new byte[Math.max(MINIMUM_BUFFER, bufferCapacity)];
+        this( serial );
     }
 
     /**
-     * Inserts data into the buffer and finds packets from it
-     * @param data Array of input data
+     * Set what happens to the packet backlog when it fills up
+     * @param backlogPolicy BACKLOG_DROP_OLDEST or BACKLOG_COALESCE_PER_ANCHOR
+     * @throws IllegalArgumentException if the policy is unknown
      */
-    public void put( byte[] data ) {
-        // Copy the data to buffer
-        System.arraycopy( data, 0, buffer, bufferCount, data.length );
-        bufferCount += data.length;
-
-        // The algorithm is run by the data as long as needed
-        while ( true ) {
-            // Find first recognizable characters
-            int index = findIndexStart();
-            if(index < 0) {
-                // Index not found -> erase buffer and stop
-                bufferCount = 0;
-                break;
-            }
-            if(!hasRoom(index)){
-                // If there is not enough data for a packet to exist ->
-                // Clear unused data and wait for more (leave)
-                bufferCount -= index;
-                System.arraycopy( buffer, index, buffer, 0, bufferCount );
-            }
-            if(!isCorrectPacket(index)) {
-                // Packet is not right -> skip 1 and try again
-                bufferCount -= index + 1;
-                System.arraycopy( buffer, index, buffer, 0, bufferCount );
-                continue;
-            }
-            // Packet found -> save it to packet buffer
-            packets.add(new DecawavePacket( deviceId, distanceInMillimeters ));
-
-            // Clear and flush the buffer to the after position of the last packet
-            // (and then continue)
-            bufferCount -= index + packetLength;
-            System.arraycopy(buffer, index + packetLength, buffer, 0, bufferCount);
-        }
+    public void setBacklogPolicy( int backlogPolicy ) {
+        if ( backlogPolicy != BACKLOG_DROP_OLDEST && backlogPolicy != BACKLOG_COALESCE_PER_ANCHOR )
+            throw new IllegalArgumentException( "Unknown backlog policy: " + backlogPolicy );
+        this.backlogPolicy = backlogPolicy;
     }
 
     /**
-     * Tests if buffer can hold a packet from given offset position forth
-     * @param offset The start point of the test
-     * @return true if there is enough data after the offset
+     * Get what happens to the packet backlog when it fills up
+     * @return BACKLOG_DROP_OLDEST or BACKLOG_COALESCE_PER_ANCHOR
      */
-    private boolean hasRoom( int offset ) {
-        return bufferCount >= offset + packetLength;
+    public int getBacklogPolicy() {
+        return backlogPolicy;
     }
 
     /**
-     * Finds the starting position of the potential packet if there is one
-     * @return The offset of potential packet, -1 otherwise
+     * Get the count of packets the backlog can hold
+     * @return backlog capacity
      */
-    private int findIndexStart() {
-        for(int i = 0; i < bufferCount; i++){
-            if(buffer[i] == (byte)'m')
-                return i;
-        }
-        return -1;
+    public int getBacklogCapacity() {
+        return packets.capacity();
     }
 
     /**
-     * Translates a value between 0 - 16 into hex character
-     * @param value given value
-     * @return hex character (as integer) or null character if given value was too large or small(?)
+     * Get the count of packets waiting to be taken
+     * @return packet count
      */
-    private int translateHex(byte value){
-        return value >= '0' && value <= '9' ? value - '0' : value >= 'a' && value <= 'f' ? value - 'a' + 10 : value >= 'A' && value <= 'F' ? value - 'A' + 10 : 0;
+    public int getBacklogSize() {
+        return packets.size();
     }
 
     /**
-     * Checks if a given number represents an ascii hex character
-     * @param v small number
-     * @return true if v is ascii hex presentation
+     * Get the count of packets dropped (or coalesced away) because they were not taken in time.
+     * Packets are counted when packets are next taken.
+     * @return dropped packet count
      */
-    private boolean isHex( byte v ) {
-        return ( v >= '0' && v <= '9' ) || ( v >= 'a' && v <= 'f' ) || ( v >= 'A' && v <= 'F' );
+    public long getDroppedPacketCount() {
+        return packets.getDroppedCount();
     }
 
-    private int createIntegerHex(byte[] dataSource, int offset, int length) {
-        int ret = 0;
-        for ( int i = offset + length - 1, multi = 1; i >= offset; i--, multi <<= 4 )
-        {
-            ret += translateHex( dataSource[i] ) * multi;
-        }
-        return ret;
+    /**
+     * Get how long the oldest waiting packet has been waiting
+     * @return nanoseconds or 0 if no packet is waiting
+     */
+    public long getOldestPacketAgeNanos() {
+        long timestamp = packets.getOldestTimestamp();
+        return timestamp != 0 ? Math.max( 0, System.nanoTime() - timestamp ) : 0;
     }
 
     /**
-     * Checks if a packet is a correct packet and stored data from it
-     * @param index The offset index to start from
-     * @return true if packet was correct
+     * Get the serial number of the device behind the parser
+     * @return serial number
      */
-    private boolean isCorrectPacket( int index ) {
-
-        if ( buffer[index] != (byte)'m' || buffer[index +1] != (byte)'a' )
-            return false;
-
-        if ( !isHex( buffer[index + 2] ) || !isHex( buffer[index + 3] ) )
-            return false;
-
-        deviceId = createIntegerHex( buffer, index + 2, 2 );
-        index += 5;
-
-        if ( buffer[index] != (byte)'t' )
-            return false;
+    public String getSerial() {
+        return serial;
+    }
 
-        if ( !isHex( buffer[index + 1] ) || !isHex( buffer[index + 2] ) )
-            return false;
+    /**
+     * Set the listener that receives every packet as soon as it is found.
+     * The listener is called on the thread that puts data into the parser.
+     * Packets are queued for {@link #popPacket} whether there is a listener or not.
+     * @param rangeListener The listener or null to remove it
+     */
+    public void setRangeListener( DecawaveRangeListener rangeListener ) {
+        this.rangeListener = rangeListener;
+    }
 
-        index += 4;
+    /**
+     * Inserts data into the parser and finds packets from it
+     * @param data Array of input data
+     */
+    public void put( byte[] data ) {
+        put( data, 0, data.length );
+    }
 
-        for ( int i = 0, j = index; i < 8; i++, j++ )
-        {
-            if ( !isHex( buffer[j] ) )
-                return false;
+    /**
+     * Inserts a part of an array into the parser and finds packets from it.
+     * Every byte is looked at exactly once and a packet is stored as soon as
+     * its last byte has arrived.
+     * @param data Array of input data
+     * @param offset The first byte of the data to use
+     * @param length The count of bytes to use
+     */
+    public void put( byte[] data, int offset, int length ) {
+        for ( int i = offset, end = offset + length; i < end; i++ ) {
+            step( data[i] );
         }
+    }
 
-        distanceInMillimeters = createIntegerHex( buffer, index, 8 );
-
-        index += 9;
-
-        for ( int i = 0, j = index; i < 8; i++, j++ )
-        {
-            if ( !isHex( buffer[j] ) )
-                return false;
+    /**
+     * Inserts the remaining bytes of a buffer into the parser and finds packets from it.
+     * The bytes are read in place and the position of the buffer is moved to its limit.
+     * @param data Buffer of input data, e.g. a read-only view of a usb buffer
+     */
+    public void put( ByteBuffer data ) {
+        int end = data.limit();
+        for ( int i = data.position(); i < end; i++ ) {
+            step( data.get( i ) );
         }
+        data.position( end );
+    }
 
-        index += 9;
-
-        for ( int i = 0, j = index; i < 4; i++, j++ )
-        {
-            if ( !isHex( buffer[j] ) )
-                return false;
+    /**
+     * Advances the state machine by one byte
+     * @param value The next byte of the serial stream
+     */
+    private void step( byte value ) {
+        if ( !matches( state, value ) ) {
+            resync( value );
+            return;
         }
-
-        index += 5;
-
-        for ( int i = 0, j = index; i < 2; i++, j++ )
-        {
-            if ( !isHex( buffer[j] ) )
-                return false;
+        frameBytes[state] = value;
+        if ( ++state == FRAME.length ) {
+            // Packet found -> save it to packet buffer
+            int deviceId = parseHex( ANCHOR_ID_START, ANCHOR_ID_END );
+            int distanceInMillimeters = parseHex( DISTANCE_START, DISTANCE_END );
+            long timestamp = System.nanoTime();
+            packets.add( deviceId, distanceInMillimeters, timestamp );
+            latestRanges.put( deviceId, distanceInMillimeters, timestamp );
+            // reset first, so an exception from the listener leaves the parser usable
+            state = 0;
+            DecawaveRangeListener listener = rangeListener;
+            if ( listener != null )
+                listener.onRange( deviceId, distanceInMillimeters, timestamp );
         }
+    }
 
-        index += 3;
-
-        for ( int i = 0, j = index; i < 8; i++, j++ )
-        {
-            if ( !isHex( buffer[j] ) )
-                return false;
+    /**
+     * Finds where a new frame may start after a mismatch. The matched bytes and the
+     * mismatching byte are scanned again from the byte after the failed start, and the
+     * longest remaining part that is a valid beginning of a frame is kept.
+     * This can never complete a frame, as the scanned part is shorter than one.
+     * @param value The byte that did not match
+     */
+    private void resync( byte value ) {
+        int length = state;
+        frameBytes[length] = value;
+        length++;
+        for ( int start = 1; start < length; start++ ) {
+            if ( frameBytes[start] != FRAME[0] )
+                continue;
+            int matched = 1;
+            while ( start + matched < length && matches( matched, frameBytes[start + matched] ) )
+                matched++;
+            if ( start + matched == length ) {
+                System.arraycopy( frameBytes, start, frameBytes, 0, matched );
+                state = matched;
+                return;
+            }
         }
+        state = 0;
+    }
 
-        index += 9;
+    /**
+     * Checks a byte against a position of the frame template
+     * @param position The position in the frame
+     * @param value The byte to check
+     * @return true if the byte is allowed in that position
+     */
+    private static boolean matches( int position, byte value ) {
+        byte expected = FRAME[position];
+        if ( expected == (byte)'#' )
+            return isHex( value );
+        return expected == (byte)' ' || expected == value;
+    }
 
-        for ( int i = 0, j = index; i < 4; i++, j++ )
-        {
-            if ( !isHex( buffer[j] ) )
-                return false;
-        }
+    /**
+     * Reads a hex number from the matched frame bytes
+     * @param start The first position (inclusive)
+     * @param end The last position (exclusive)
+     * @return parsed value
+     */
+    private int parseHex( int start, int end ) {
+        int value = 0;
+        for ( int i = start; i < end; i++ )
+            value = ( value << 4 ) | translateHex( frameBytes[i] );
+        return value;
+    }
+
+    /**
+     * Translates a value between 0 - 16 into hex character
+     * @param value given value
+     * @return hex character (as integer) or null character if given value was too large or small(?)
+     */
+    private int translateHex(byte value){
+        return value >= '0' && value <= '9' ? value - '0' : value >= 'a' && value <= 'f' ? value - 'a' + 10 : value >= 'A' && value <= 'F' ? value - 'A' + 10 : 0;
+    }
 
-        index += 5;
+    /**
+     * Checks if a given number represents an ascii hex character
+     * @param v small number
+     * @return true if v is ascii hex presentation
+     */
+    private static boolean isHex( byte v ) {
+        return ( v >= '0' && v <= '9' ) || ( v >= 'a' && v <= 'f' ) || ( v >= 'A' && v <= 'F' );
+    }
 
-        for ( int i = 0, j = index; i < 4; i++, j++ )
-        {
-            if ( !isHex( buffer[j] ) )
-                return false;
+    /**
+     * Takes one packet from the parser (takes it away from the parser)
+     * @return a packet
+     * @throws NoSuchElementException if there are no packets
+     */
+    public DecawavePacket popPacket() {
+        synchronized ( consumerLock ) {
+            coalesceOverrun();
+            if ( packets.drainTo( popAnchorId, popDistance, popTimestamp, 0, 1 ) == 0 )
+                throw new NoSuchElementException();
+            return new DecawavePacket( popAnchorId[0], popDistance[0], popTimestamp[0] );
         }
+    }
 
-        index += 5;
-
-        if ( buffer[index] != (byte)'t' )
-            return false;
+    /**
+     * Takes every packet that fits into the given arrays from the parser, oldest first.
+     * Nothing is allocated, so this can be called once per frame instead of popping one by one.
+     * @param anchorIds Receives the anchor ids
+     * @param distances Receives the distances in millimeters
+     * @param timestamps Receives the arrival times from {@link System#nanoTime()}
+     * @return the count of packets written to the arrays
+     */
+    public int drainTo( int[] anchorIds, int[] distances, long[] timestamps ) {
+        synchronized ( consumerLock ) {
+            coalesceOverrun();
+            return packets.drainTo( anchorIds, distances, timestamps );
+        }
+    }
 
-        if ( !isHex( buffer[index + 1] ) )
-            return false;
+    /**
+     * Takes every packet that fits into the buffer from the parser as range records, oldest first.
+     * See {@link DecawavePacketQueue#RECORD_SIZE} for the record layout.
+     * @param target The buffer to write into from its position onwards
+     * @param receiverId The receiver id written into every record
+     * @return the count of records written
+     */
+    public int drainTo( ByteBuffer target, int receiverId ) {
+        synchronized ( consumerLock ) {
+            coalesceOverrun();
+            return packets.drainTo( target, receiverId );
+        }
+    }
 
-        return true;
+    /**
+     * Get the latest range of every anchor. The table can be read from any thread
+     * without taking packets and without waiting for the parser.
+     * @return latest range table
+     */
+    public DecawaveRangeTable getLatestRanges() {
+        return latestRanges;
     }
 
     /**
-     * Takes one packet from the parser (takes it away from the parser)
-     * @return a packet
+     * Replaces an overrun backlog with the latest range of every anchor when the
+     * policy is BACKLOG_COALESCE_PER_ANCHOR. Only anchors with a range newer than
+     * the last packet taken are kept, oldest first. Called under the consumer lock
+     * before packets are taken.
      */
-    public DecawavePacket popPacket() {
-        return packets.pop();
+    private void coalesceOverrun() {
+        if ( backlogPolicy != BACKLOG_COALESCE_PER_ANCHOR || !packets.isOverrun() )
+            return;
+        // a table that keeps changing is left for the next take, the ring drops the oldest meanwhile
+        if ( latestRanges.snapshot( snapshotDistances, snapshotTimestamps ) < 0 )
+            return;
+        long lastTaken = packets.getLastTakenTimestamp();
+        int count = 0;
+        for ( int anchorId = 0; anchorId < DecawaveRangeTable.MAX_ANCHORS; anchorId++ ) {
+            long timestamp = snapshotTimestamps[anchorId];
+            if ( timestamp == 0 || ( lastTaken != 0 && timestamp - lastTaken <= 0 ) )
+                continue;
+            // insertion by arrival time keeps the packets oldest first
+            int i = count++;
+            while ( i > 0 && snapshotTimestamps[coalesceAnchorIds[i - 1]] - timestamp > 0 ) {
+                coalesceAnchorIds[i] = coalesceAnchorIds[i - 1];
+                i--;
+            }
+            coalesceAnchorIds[i] = anchorId;
+        }
+        for ( int i = 0; i < count; i++ ) {
+            int anchorId = coalesceAnchorIds[i];
+            coalesceDistances[i] = snapshotDistances[anchorId];
+            coalesceTimestamps[i] = snapshotTimestamps[anchorId];
+        }
+        packets.replaceBacklog( coalesceAnchorIds, coalesceDistances, coalesceTimestamps, count );
     }
 
     /**
@@ -268,7 +422,7 @@ public class DecawaveParser {
      * @return true if there is at least one packet available
      */
     public boolean hasPacket() {
-        return packets.size() > 0;
+        return !packets.isEmpty();
     }
 
 }
@@ -0,0 +1,211 @@
+package com.marin2.decawave.unity3dplugin;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a DecawaveParser on its own thread.
+ * The usb thread only copies the received bytes into a free chunk of a
+ * preallocated pool and hands it over, so it can queue the next usb request
+ * right away. When every chunk is in use the bytes are dropped (and counted)
+ * instead of blocking the usb thread.
+ * An exception thrown by the parser or its range listener is logged and
+ * counted, and parsing goes on with the next chunk.
+ */
+public class DecawaveParserThread extends Thread {
+
+    /**
+     * The default count of chunks in the pool
+     */
+    public static final int DEFAULT_CHUNK_COUNT = 16;
+    /**
+     * The default size of one chunk in bytes
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    private final DecawaveParser parser;
+    /**
+     * Chunks waiting to be filled and chunks waiting to be parsed.
+     * Both queues are preallocated and hold every chunk between them.
+     */
+    private final ArrayBlockingQueue<Chunk> freeChunks;
+    private final ArrayBlockingQueue<Chunk> filledChunks;
+    private final AtomicLong droppedBytes;
+    private final AtomicLong errorCount;
+    private final Queue<String> log;
+    private volatile boolean working;
+
+    /**
+     * Creates a parser thread with the default pool
+     * @param parser The parser to feed (only this thread may put data into it)
+     */
+    public DecawaveParserThread( DecawaveParser parser ) {
+        this( parser, DEFAULT_CHUNK_COUNT, DEFAULT_CHUNK_SIZE, null );
+    }
+
+    /**
+     * Creates a parser thread with the default pool
+     * @param parser The parser to feed (only this thread may put data into it)
+     * @param log Receives a message for every exception thrown while parsing, or null
+     */
+    public DecawaveParserThread( DecawaveParser parser, Queue<String> log ) {
+        this( parser, DEFAULT_CHUNK_COUNT, DEFAULT_CHUNK_SIZE, log );
+    }
+
+    /**
+     * Creates a parser thread
+     * @param parser The parser to feed (only this thread may put data into it)
+     * @param chunkCount The count of chunks in the pool
+     * @param chunkSize The size of one chunk in bytes
+     */
+    public DecawaveParserThread( DecawaveParser parser, int chunkCount, int chunkSize ) {
+        this( parser, chunkCount, chunkSize, null );
+    }
+
+    /**
+     * Creates a parser thread
+     * @param parser The parser to feed (only this thread may put data into it)
+     * @param chunkCount The count of chunks in the pool
+     * @param chunkSize The size of one chunk in bytes
+     * @param log Receives a message for every exception thrown while parsing, or null
+     */
+    public DecawaveParserThread( DecawaveParser parser, int chunkCount, int chunkSize, Queue<String> log ) {
+        super( "DecawaveParser-" + parser.getSerial() );
+        setDaemon( true );
+        this.parser = parser;
+        freeChunks = new ArrayBlockingQueue<>( chunkCount );
+        filledChunks = new ArrayBlockingQueue<>( chunkCount );
+        for ( int i = 0; i < chunkCount; i++ )
+            freeChunks.add( new Chunk( chunkSize ) );
+        droppedBytes = new AtomicLong();
+        errorCount = new AtomicLong();
+        this.log = log;
+        working = true;
+    }
+
+    /**
+     * Hands data over to the parser thread without waiting.
+     * Called from the usb thread.
+     * @param data Array of input data
+     * @param offset The first byte of the data to use
+     * @param length The count of bytes to use
+     * @return true if every byte was handed over, false if some were dropped
+     */
+    public boolean offer( byte[] data, int offset, int length ) {
+        while ( length > 0 ) {
+            Chunk chunk = freeChunks.poll();
+            if ( chunk == null ) {
+                droppedBytes.addAndGet( length );
+                return false;
+            }
+            chunk.length = Math.min( length, chunk.data.length );
+            System.arraycopy( data, offset, chunk.data, 0, chunk.length );
+            filledChunks.add( chunk );
+            offset += chunk.length;
+            length -= chunk.length;
+        }
+        return true;
+    }
+
+    /**
+     * Hands the remaining bytes of a buffer over to the parser thread without waiting.
+     * Called from the usb thread. The position of the buffer is moved past the bytes handed over.
+     * @param data Buffer of input data, e.g. a read-only view of a usb buffer
+     * @return true if every byte was handed over, false if some were dropped
+     */
+    public boolean offer( ByteBuffer data ) {
+        while ( data.hasRemaining() ) {
+            Chunk chunk = freeChunks.poll();
+            if ( chunk == null ) {
+                droppedBytes.addAndGet( data.remaining() );
+                data.position( data.limit() );
+                return false;
+            }
+            chunk.length = Math.min( data.remaining(), chunk.data.length );
+            data.get( chunk.data, 0, chunk.length );
+            filledChunks.add( chunk );
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        while ( working ) {
+            Chunk chunk;
+            try {
+                chunk = filledChunks.take();
+            }
+            catch ( InterruptedException exception ) {
+                continue;
+            }
+            try {
+                parser.put( chunk.data, 0, chunk.length );
+            }
+            catch ( RuntimeException exception ) {
+                errorCount.incrementAndGet();
+                if ( log != null )
+                    log.add( "Exception on byte parser: " + exception.getClass().getName() + ": " + exception.getMessage() );
+            }
+            finally {
+                freeChunks.add( chunk );
+            }
+        }
+    }
+
+    /**
+     * Stops the thread. Chunks that have not been parsed yet are discarded.
+     */
+    public void stopParsing() {
+        working = false;
+        interrupt();
+    }
+
+    /**
+     * Stops the thread and waits for it to end
+     * @param timeoutMillis The longest time to wait in milliseconds
+     * @return true if the thread has ended
+     */
+    public boolean stopParsing( long timeoutMillis ) {
+        stopParsing();
+        if ( Thread.currentThread() == this )
+            return false;
+        try {
+            join( timeoutMillis );
+        }
+        catch ( InterruptedException exception ) {
+            Thread.currentThread().interrupt();
+        }
+        return !isAlive();
+    }
+
+    /**
+     * Get the count of bytes dropped because the pool was exhausted
+     * @return dropped byte count
+     */
+    public long getDroppedBytes() {
+        return droppedBytes.get();
+    }
+
+    /**
+     * Get the count of exceptions thrown by the parser or its range listener
+     * @return exception count
+     */
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * A reusable piece of received data
+     */
+    private static class Chunk {
+        private final byte[] data;
+        private int length;
+
+        private Chunk( int size ) {
+            data = new byte[size];
+        }
+    }
+
+}
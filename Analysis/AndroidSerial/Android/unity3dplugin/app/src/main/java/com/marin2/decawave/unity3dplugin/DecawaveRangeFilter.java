@@ -0,0 +1,259 @@
+package com.marin2.decawave.unity3dplugin;
+
+/**
+ * Rejects implausible ranges of one receiver before they reach the solver.
+ * Every anchor has a short window of its latest ranges. A range is rejected when
+ * it is far from the median of the window compared to the spread of the window
+ * (a Hampel test), or when it changes faster than the receiver can move since the
+ * last accepted range of the anchor. The window holds the rejected ranges too, so
+ * a real jump (e.g. an anchor moved) passes the Hampel test once it has filled half
+ * the window, and when the speed test then rejects a whole window of ranges that
+ * agree with the median, the last accepted range is taken as stale and replaced.
+ * Memory per anchor is fixed and nothing is allocated after construction.
+ *
+ * {@link #accept} must only be called from one thread (the parsing thread of the
+ * receiver). The counters can be read from any thread.
+ */
+public class DecawaveRangeFilter {
+
+    /**
+     * The default count of ranges in the window of an anchor
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 5;
+    /**
+     * The default Hampel threshold in scaled median absolute deviations
+     */
+    public static final double DEFAULT_HAMPEL_THRESHOLD = 3.0;
+    /**
+     * The default smallest deviation from the median that can be rejected in millimeters
+     */
+    public static final int DEFAULT_MIN_DEVIATION = 300;
+    /**
+     * The default fastest plausible speed of a receiver in meters per second
+     */
+    public static final double DEFAULT_MAX_SPEED = 8.0;
+    /**
+     * The default range change always allowed by the speed test in millimeters
+     */
+    public static final int DEFAULT_MAX_JITTER = 300;
+
+    /**
+     * Scales the median absolute deviation to a standard deviation of normal noise
+     */
+    private static final double MAD_SCALE = 1.4826;
+
+    private static final int ANCHORS = DecawaveAnchors.MAX_ANCHORS;
+
+    private final int windowSize;
+    /**
+     * Window ring of every anchor ( ANCHORS * windowSize ), the next slot and the fill count
+     */
+    private final int[] windows;
+    private final int[] windowNext = new int[ANCHORS];
+    private final int[] windowCount = new int[ANCHORS];
+    /**
+     * The last accepted range of every anchor (a timestamp of 0 means none)
+     */
+    private final int[] acceptedDistances = new int[ANCHORS];
+    private final long[] acceptedTimestamps = new long[ANCHORS];
+    private final long[] anchorRejections = new long[ANCHORS];
+    /**
+     * Ranges in a row that passed the Hampel test but failed the speed test
+     */
+    private final int[] speedRejectionRuns = new int[ANCHORS];
+    /**
+     * Scratch space for the medians
+     */
+    private final int[] sorted;
+
+    private volatile double hampelThreshold = DEFAULT_HAMPEL_THRESHOLD;
+    private volatile int minDeviation = DEFAULT_MIN_DEVIATION;
+    private volatile double maxSpeed = DEFAULT_MAX_SPEED;
+    private volatile int maxJitter = DEFAULT_MAX_JITTER;
+
+    /**
+     * Counters, written by the filtering thread only
+     */
+    private volatile long acceptedCount;
+    private volatile long outlierCount;
+    private volatile long speedRejectionCount;
+
+    /**
+     * Creates a filter with the default window size
+     */
+    public DecawaveRangeFilter() {
+        this( DEFAULT_WINDOW_SIZE );
+    }
+
+    /**
+     * Creates a filter
+     * @param windowSize The count of ranges in the window of an anchor (at least 3)
+     */
+    public DecawaveRangeFilter( int windowSize ) {
+        this.windowSize = Math.max( 3, windowSize );
+        windows = new int[ANCHORS * this.windowSize];
+        sorted = new int[this.windowSize];
+    }
+
+    /**
+     * Set the Hampel threshold
+     * @param hampelThreshold The largest accepted deviation from the median in scaled median absolute deviations
+     */
+    public void setHampelThreshold( double hampelThreshold ) {
+        this.hampelThreshold = hampelThreshold;
+    }
+
+    /**
+     * Set the smallest deviation from the median that can be rejected.
+     * Keeps a quiet window (with almost no spread) from rejecting normal noise.
+     * @param minDeviation millimeters
+     */
+    public void setMinDeviation( int minDeviation ) {
+        this.minDeviation = minDeviation;
+    }
+
+    /**
+     * Set the fastest plausible speed of a receiver
+     * @param maxSpeed meters per second, 0 or less turns the speed test off
+     */
+    public void setMaxSpeed( double maxSpeed ) {
+        this.maxSpeed = maxSpeed;
+    }
+
+    /**
+     * Set the range change always allowed by the speed test (the range noise)
+     * @param maxJitter millimeters
+     */
+    public void setMaxJitter( int maxJitter ) {
+        this.maxJitter = maxJitter;
+    }
+
+    /**
+     * Tests a range and adds it to the window of its anchor
+     * @param anchorId The id of the anchor
+     * @param distanceInMillimeters The distance from the anchor in millimeters
+     * @param timestampNanos The arrival time of the range from {@link System#nanoTime()}
+     * @return true if the range is plausible, false if it was rejected
+     */
+    public boolean accept( int anchorId, int distanceInMillimeters, long timestampNanos ) {
+        if ( anchorId < 0 || anchorId >= ANCHORS )
+            return false;
+
+        boolean outlier = isOutlier( anchorId, distanceInMillimeters );
+        int offset = anchorId * windowSize;
+        windows[offset + windowNext[anchorId]] = distanceInMillimeters;
+        windowNext[anchorId] = ( windowNext[anchorId] + 1 ) % windowSize;
+        if ( windowCount[anchorId] < windowSize )
+            windowCount[anchorId]++;
+        if ( outlier ) {
+            anchorRejections[anchorId]++;
+            outlierCount++;
+            return false;
+        }
+
+        long lastTimestamp = acceptedTimestamps[anchorId];
+        double speed = maxSpeed;
+        if ( lastTimestamp != 0 && speed > 0 && speedRejectionRuns[anchorId] < windowSize ) {
+            double allowed = speed * ( timestampNanos - lastTimestamp ) / 1e6 + maxJitter;
+            if ( Math.abs( distanceInMillimeters - acceptedDistances[anchorId] ) > allowed ) {
+                speedRejectionRuns[anchorId]++;
+                anchorRejections[anchorId]++;
+                speedRejectionCount++;
+                return false;
+            }
+        }
+
+        speedRejectionRuns[anchorId] = 0;
+        acceptedDistances[anchorId] = distanceInMillimeters;
+        acceptedTimestamps[anchorId] = timestampNanos;
+        acceptedCount++;
+        return true;
+    }
+
+    /**
+     * Hampel test of a range against the current window of its anchor.
+     * The test is skipped until the window is full.
+     */
+    private boolean isOutlier( int anchorId, int distanceInMillimeters ) {
+        if ( windowCount[anchorId] < windowSize )
+            return false;
+        System.arraycopy( windows, anchorId * windowSize, sorted, 0, windowSize );
+        int median = median();
+        for ( int i = 0; i < windowSize; i++ )
+            sorted[i] = Math.abs( sorted[i] - median );
+        double limit = Math.max( hampelThreshold * MAD_SCALE * median(), minDeviation );
+        return Math.abs( distanceInMillimeters - median ) > limit;
+    }
+
+    /**
+     * Sorts the scratch window in place (insertion sort, the window is small)
+     * @return the median of the scratch window
+     */
+    private int median() {
+        for ( int i = 1; i < windowSize; i++ ) {
+            int value = sorted[i];
+            int j = i - 1;
+            while ( j >= 0 && sorted[j] > value ) {
+                sorted[j + 1] = sorted[j];
+                j--;
+            }
+            sorted[j + 1] = value;
+        }
+        return sorted[windowSize / 2];
+    }
+
+    /**
+     * Forgets the windows and the last accepted ranges (counters are kept)
+     */
+    public void reset() {
+        for ( int i = 0; i < ANCHORS; i++ ) {
+            windowCount[i] = 0;
+            windowNext[i] = 0;
+            acceptedTimestamps[i] = 0;
+            speedRejectionRuns[i] = 0;
+        }
+    }
+
+    /**
+     * Get the count of accepted ranges
+     * @return range count
+     */
+    public long getAcceptedCount() {
+        return acceptedCount;
+    }
+
+    /**
+     * Get the count of ranges rejected by the Hampel test
+     * @return range count
+     */
+    public long getOutlierCount() {
+        return outlierCount;
+    }
+
+    /**
+     * Get the count of ranges rejected by the speed test
+     * @return range count
+     */
+    public long getSpeedRejectionCount() {
+        return speedRejectionCount;
+    }
+
+    /**
+     * Get the count of every rejected range
+     * @return range count
+     */
+    public long getRejectedCount() {
+        return outlierCount + speedRejectionCount;
+    }
+
+    /**
+     * Get the count of rejected ranges of one anchor, e.g. to find an anchor without line of sight.
+     * The value can lag behind slightly when read from another thread.
+     * @param anchorId The id of the anchor
+     * @return range count
+     */
+    public long getRejectedCount( int anchorId ) {
+        return anchorId >= 0 && anchorId < ANCHORS ? anchorRejections[anchorId] : 0;
+    }
+
+}
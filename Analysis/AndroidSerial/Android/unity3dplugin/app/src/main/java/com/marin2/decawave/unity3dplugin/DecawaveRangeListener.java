@@ -0,0 +1,18 @@
+package com.marin2.decawave.unity3dplugin;
+
+/**
+ * Receives every range as soon as the parser has found it.
+ * The listener is called on the thread that feeds the parser (the usb thread
+ * or the parser thread of the device), so it must not block.
+ */
+public interface DecawaveRangeListener {
+
+    /**
+     * Called for every parsed range packet
+     * @param anchorId The id of the anchor
+     * @param distanceInMillimeters The distance from the anchor in millimeters
+     * @param timestampNanos The arrival time of the packet from {@link System#nanoTime()}
+     */
+    void onRange( int anchorId, int distanceInMillimeters, long timestampNanos );
+
+}
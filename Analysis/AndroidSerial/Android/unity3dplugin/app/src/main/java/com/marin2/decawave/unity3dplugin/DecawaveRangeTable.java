@@ -0,0 +1,160 @@
+package com.marin2.decawave.unity3dplugin;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The latest range of every anchor of one receiver, indexed by anchor id.
+ * The table has a fixed size, so memory stays the same however long nobody reads it.
+ *
+ * Writes are made under a sequence counter (a seqlock): the counter is odd while
+ * an entry is being written. Readers never lock and never hold up the writer;
+ * they copy the entries and retry when the counter changed during the copy.
+ * Writes are rare compared to the time a copy takes, so a retry is rare too.
+ *
+ * Reads are lock-free but not wait-free: a reader gives up after a bounded count of
+ * attempts. That happens when writes keep coming during the copies, or when the
+ * writer is descheduled in the middle of a write. A failed read must be retried later.
+ */
+public class DecawaveRangeTable {
+
+    /**
+     * The count of anchor ids in the table
+     */
+    public static final int MAX_ANCHORS = DecawaveAnchors.MAX_ANCHORS;
+
+    /**
+     * Returned by {@link #get(int, long[])} when the range was read
+     */
+    public static final int READ_OK = 1;
+    /**
+     * Returned by {@link #get(int, long[])} when the anchor has no range or its id is out of range
+     */
+    public static final int READ_NO_RANGE = 0;
+    /**
+     * Returned by {@link #get(int, long[])} when the table was being written during every attempt.
+     * The anchor may well have a range, the read should be retried later.
+     */
+    public static final int READ_BUSY = -1;
+
+    /**
+     * The number of times a reader tries to copy the table before it gives up.
+     * A reader yields between attempts, so a descheduled writer can finish its write.
+     */
+    private static final int MAX_READ_ATTEMPTS = 16;
+
+    /**
+     * Two values per anchor: the arrival time (0 for no range) and the distance
+     */
+    private final AtomicLongArray entries = new AtomicLongArray( MAX_ANCHORS * 2 );
+    /**
+     * Odd while a write is in progress, incremented twice per write
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Stores the latest range of an anchor. Normally called from one thread only
+     * (the parsing thread of the receiver); concurrent writers are serialized.
+     * @param anchorId The id of the anchor, ids outside 0 - 255 are ignored
+     * @param distanceInMillimeters The distance from the anchor in millimeters
+     * @param timestampNanos The arrival time of the range from {@link System#nanoTime()}, not 0
+     */
+    public synchronized void put( int anchorId, int distanceInMillimeters, long timestampNanos ) {
+        if ( anchorId < 0 || anchorId >= MAX_ANCHORS )
+            return;
+        long version = beginWrite();
+        entries.set( anchorId * 2, timestampNanos );
+        entries.set( anchorId * 2 + 1, distanceInMillimeters );
+        endWrite( version );
+    }
+
+    /**
+     * Removes every range from the table
+     */
+    public synchronized void clear() {
+        long version = beginWrite();
+        for ( int i = 0; i < MAX_ANCHORS; i++ )
+            entries.set( i * 2, 0 );
+        endWrite( version );
+    }
+
+    /**
+     * Makes the sequence counter odd, must be called holding the lock of the table
+     * @return the version before the write, to be passed to {@link #endWrite(long)}
+     */
+    long beginWrite() {
+        long version = sequence.get();
+        sequence.set( version + 1 );
+        return version;
+    }
+
+    /**
+     * Makes the sequence counter even again, must be called holding the lock of the table
+     * @param version The version returned by {@link #beginWrite()}
+     */
+    void endWrite( long version ) {
+        sequence.set( version + 2 );
+    }
+
+    /**
+     * Get the version of the table. The version changes on every write.
+     * @return version number
+     */
+    public long getVersion() {
+        return sequence.get() & ~1L;
+    }
+
+    /**
+     * Copies a consistent snapshot of the whole table without locking or allocating
+     * @param distances Receives the distance of every anchor in millimeters ({@link #MAX_ANCHORS} values)
+     * @param timestamps Receives the arrival time of every range, 0 for anchors without a range ({@link #MAX_ANCHORS} values)
+     * @return the version of the snapshot, or -1 if the table was being written during every attempt
+     * (the arrays then hold no consistent content and the read should be retried later)
+     */
+    public long snapshot( int[] distances, long[] timestamps ) {
+        for ( int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++ ) {
+            if ( attempt > 0 )
+                Thread.yield();
+            long version = sequence.get();
+            if ( ( version & 1 ) != 0 )
+                continue;
+            for ( int i = 0; i < MAX_ANCHORS; i++ ) {
+                timestamps[i] = entries.get( i * 2 );
+                distances[i] = (int)entries.get( i * 2 + 1 );
+            }
+            if ( sequence.get() == version )
+                return version;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the latest range of one anchor without locking
+     * @param anchorId The id of the anchor
+     * @param out Receives the distance in millimeters and the arrival time from {@link System#nanoTime()}
+     * @return {@link #READ_OK} if the range was read, {@link #READ_NO_RANGE} if the anchor has none,
+     * or {@link #READ_BUSY} if the table kept changing (out is then left unchanged)
+     */
+    public int get( int anchorId, long[] out ) {
+        if ( anchorId < 0 || anchorId >= MAX_ANCHORS )
+            return READ_NO_RANGE;
+        for ( int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++ ) {
+            if ( attempt > 0 )
+                Thread.yield();
+            long version = sequence.get();
+            if ( ( version & 1 ) != 0 )
+                continue;
+            long timestamp = entries.get( anchorId * 2 );
+            long distance = entries.get( anchorId * 2 + 1 );
+            if ( sequence.get() == version ) {
+                if ( timestamp == 0 )
+                    return READ_NO_RANGE;
+                out[0] = (int)distance;
+                out[1] = timestamp;
+                return READ_OK;
+            }
+        }
+        return READ_BUSY;
+    }
+
+}
@@ -0,0 +1,434 @@
+package com.marin2.decawave.unity3dplugin;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Solves the position of every receiver from its latest ranges on a background thread.
+ * Ranges are handed in from the parsing threads with {@link #onRange}, which only stores
+ * the range in the {@link DecawaveRangeTable} of the receiver and wakes the solver, so
+ * a position is solved at radio rate. The solver runs a Gauss-Newton least squares fit
+ * over the fresh ranges of the configured anchors and publishes the position and the
+ * rms residual, which any thread can read without waiting for a solve.
+ * Nothing is allocated after construction.
+ */
+public class DecawaveSolver {
+
+    /**
+     * The count of receivers the solver can hold (receiver ids 0 - 31)
+     */
+    public static final int MAX_RECEIVERS = 32;
+    /**
+     * The default maximum age of a range used in a solve in milliseconds
+     */
+    public static final long DEFAULT_MAX_RANGE_AGE = 500;
+    /**
+     * The default maximum count of Gauss-Newton iterations per solve
+     */
+    public static final int DEFAULT_MAX_ITERATIONS = 10;
+    /**
+     * The count of ranges needed for a solve
+     */
+    public static final int MIN_ANCHORS = 3;
+    /**
+     * The iteration ends when the position moves less than this (in meters)
+     */
+    private static final double CONVERGENCE = 1e-4;
+    /**
+     * Relative damping added to the normal equations, keeps the step finite
+     * when the anchors are (nearly) in one plane
+     */
+    private static final double DAMPING = 1e-6;
+    /**
+     * Result layout: x, y, z and the rms residual (all in meters)
+     */
+    private static final int RESULT_SIZE = 4;
+
+    private static final int ANCHORS = DecawaveAnchors.MAX_ANCHORS;
+
+    private final DecawaveAnchors anchors;
+
+    /**
+     * Latest range of every anchor per receiver, written by the parsing threads
+     */
+    private final DecawaveRangeTable[] rangeTables = new DecawaveRangeTable[MAX_RECEIVERS];
+
+    /**
+     * Published results per receiver
+     */
+    private final Object resultLock = new Object();
+    private final double[] results = new double[MAX_RECEIVERS * RESULT_SIZE];
+    private final long[] resultTimestamps = new long[MAX_RECEIVERS];
+    private final int[] resultAnchorCounts = new int[MAX_RECEIVERS];
+
+    /**
+     * One bit per receiver that has new ranges
+     */
+    private final AtomicInteger dirty = new AtomicInteger();
+    private final AtomicLong solveCount = new AtomicLong();
+    private final AtomicLong droppedRangeCount = new AtomicLong();
+
+    /**
+     * Solver thread state, only used by the solver thread
+     */
+    private final double[] anchorPositions = new double[ANCHORS * 3];
+    private final boolean[] anchorConfigured = new boolean[ANCHORS];
+    private int anchorVersion = -1;
+    private final int[] snapshotDistances = new int[ANCHORS];
+    private final long[] snapshotTimestamps = new long[ANCHORS];
+    private final double[] usedX = new double[ANCHORS];
+    private final double[] usedY = new double[ANCHORS];
+    private final double[] usedZ = new double[ANCHORS];
+    private final double[] usedRanges = new double[ANCHORS];
+
+    private volatile long maxRangeAgeNanos = DEFAULT_MAX_RANGE_AGE * 1000000L;
+    private volatile int maxIterations = DEFAULT_MAX_ITERATIONS;
+    private volatile boolean fixedHeight;
+    private volatile double height;
+
+    private volatile Thread thread;
+    private volatile boolean working;
+
+    /**
+     * Creates a solver
+     * @param anchors The anchor positions used in the solves
+     */
+    public DecawaveSolver( DecawaveAnchors anchors ) {
+        this.anchors = anchors;
+        for ( int i = 0; i < MAX_RECEIVERS; i++ )
+            rangeTables[i] = new DecawaveRangeTable();
+    }
+
+    /**
+     * Get the anchor positions used in the solves
+     * @return anchor table
+     */
+    public DecawaveAnchors getAnchors() {
+        return anchors;
+    }
+
+    /**
+     * Get the latest ranges the solver uses for a receiver
+     * @param receiverId The id of the receiver
+     * @return range table or null if the id is out of range
+     */
+    public DecawaveRangeTable getRangeTable( int receiverId ) {
+        return receiverId >= 0 && receiverId < MAX_RECEIVERS ? rangeTables[receiverId] : null;
+    }
+
+    /**
+     * Starts the solver thread. Does nothing if it is already running.
+     */
+    public synchronized void start() {
+        if ( thread != null )
+            return;
+        working = true;
+        thread = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                solveLoop();
+            }
+        }, "DecawaveSolver" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    /**
+     * Stops the solver thread and waits for it to end
+     * @param timeoutMillis The longest time to wait in milliseconds
+     * @return true if the thread has ended
+     */
+    public synchronized boolean stop( long timeoutMillis ) {
+        Thread current = thread;
+        if ( current == null )
+            return true;
+        working = false;
+        LockSupport.unpark( current );
+        thread = null;
+        if ( Thread.currentThread() == current )
+            return false;
+        try {
+            current.join( timeoutMillis );
+        }
+        catch ( InterruptedException exception ) {
+            Thread.currentThread().interrupt();
+        }
+        return !current.isAlive();
+    }
+
+    /**
+     * Set the maximum age of a range used in a solve
+     * @param maxRangeAgeMillis milliseconds
+     */
+    public void setMaxRangeAgeMillis( long maxRangeAgeMillis ) {
+        this.maxRangeAgeNanos = maxRangeAgeMillis * 1000000L;
+    }
+
+    /**
+     * Get the maximum age of a range used in a solve
+     * @return milliseconds
+     */
+    public long getMaxRangeAgeMillis() {
+        return maxRangeAgeNanos / 1000000L;
+    }
+
+    /**
+     * Set the maximum count of Gauss-Newton iterations per solve
+     * @param maxIterations iteration count (at least 1)
+     */
+    public void setMaxIterations( int maxIterations ) {
+        this.maxIterations = Math.max( 1, maxIterations );
+    }
+
+    /**
+     * Solve only x and y with the receiver at a known height.
+     * Use this when the anchors are all at about the same height, which leaves z unobservable.
+     * @param enabled true to keep z fixed
+     * @param height The z coordinate of the receiver in meters
+     */
+    public void setFixedHeight( boolean enabled, double height ) {
+        this.height = height;
+        this.fixedHeight = enabled;
+    }
+
+    /**
+     * Stores a range of a receiver and wakes the solver.
+     * Called from the parsing threads, never blocks for long.
+     * @param receiverId The id of the receiver (0 - {@link #MAX_RECEIVERS} - 1), other ids are ignored and counted
+     * @param anchorId The id of the anchor, ids outside 0 - 255 are ignored and counted
+     * @param distanceInMillimeters The distance from the anchor in millimeters
+     * @param timestampNanos The arrival time of the range from {@link System#nanoTime()}
+     */
+    public void onRange( int receiverId, int anchorId, int distanceInMillimeters, long timestampNanos ) {
+        if ( receiverId < 0 || receiverId >= MAX_RECEIVERS || anchorId < 0 || anchorId >= ANCHORS ) {
+            droppedRangeCount.incrementAndGet();
+            return;
+        }
+        rangeTables[receiverId].put( anchorId, distanceInMillimeters, timestampNanos );
+        markDirty( receiverId );
+    }
+
+    /**
+     * Marks a receiver for solving and wakes the solver if it was not marked yet
+     * @param receiverId The id of the receiver
+     */
+    private void markDirty( int receiverId ) {
+        int bit = 1 << receiverId;
+        int mask;
+        do {
+            mask = dirty.get();
+            if ( ( mask & bit ) != 0 )
+                return;
+        } while ( !dirty.compareAndSet( mask, mask | bit ) );
+        Thread current = thread;
+        if ( current != null )
+            LockSupport.unpark( current );
+    }
+
+    /**
+     * Forgets the ranges and the position of a receiver
+     * @param receiverId The id of the receiver
+     */
+    public void clear( int receiverId ) {
+        if ( receiverId < 0 || receiverId >= MAX_RECEIVERS )
+            return;
+        rangeTables[receiverId].clear();
+        synchronized ( resultLock ) {
+            resultTimestamps[receiverId] = 0;
+            resultAnchorCounts[receiverId] = 0;
+        }
+    }
+
+    /**
+     * Get the latest solved position of a receiver
+     * @param receiverId The id of the receiver
+     * @param out Receives x, y, z and the rms range residual, all in meters
+     * @return the arrival time of the newest range used in the solve, or 0 if there is no position
+     */
+    public long getPosition( int receiverId, double[] out ) {
+        if ( receiverId < 0 || receiverId >= MAX_RECEIVERS )
+            return 0;
+        synchronized ( resultLock ) {
+            long timestamp = resultTimestamps[receiverId];
+            if ( timestamp != 0 )
+                System.arraycopy( results, receiverId * RESULT_SIZE, out, 0, Math.min( out.length, RESULT_SIZE ) );
+            return timestamp;
+        }
+    }
+
+    /**
+     * Get the count of anchors used in the latest solve of a receiver
+     * @param receiverId The id of the receiver
+     * @return anchor count or 0 if there is no position
+     */
+    public int getAnchorCount( int receiverId ) {
+        if ( receiverId < 0 || receiverId >= MAX_RECEIVERS )
+            return 0;
+        synchronized ( resultLock ) {
+            return resultAnchorCounts[receiverId];
+        }
+    }
+
+    /**
+     * Get the count of solves that produced a position
+     * @return solve count
+     */
+    public long getSolveCount() {
+        return solveCount.get();
+    }
+
+    /**
+     * Get the count of ranges ignored because of a receiver or anchor id out of range
+     * @return dropped range count
+     */
+    public long getDroppedRangeCount() {
+        return droppedRangeCount.get();
+    }
+
+    private void solveLoop() {
+        while ( working ) {
+            int mask = dirty.getAndSet( 0 );
+            if ( mask == 0 ) {
+                LockSupport.park( this );
+                continue;
+            }
+            if ( anchors.getVersion() != anchorVersion )
+                anchorVersion = anchors.copyTo( anchorPositions, anchorConfigured );
+            long now = System.nanoTime();
+            while ( mask != 0 ) {
+                int receiverId = Integer.numberOfTrailingZeros( mask );
+                mask &= mask - 1;
+                if ( solve( receiverId, now ) )
+                    solveCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Solves the position of one receiver (solver thread only)
+     * @param receiverId The id of the receiver
+     * @param now The current time from {@link System#nanoTime()}
+     * @return true if a position was published
+     */
+    private boolean solve( int receiverId, long now ) {
+        if ( rangeTables[receiverId].snapshot( snapshotDistances, snapshotTimestamps ) < 0 ) {
+            // the table was busy, the dirty bit is already cleared so mark it again for the next round
+            markDirty( receiverId );
+            return false;
+        }
+
+        // collect the fresh ranges of configured anchors
+        long maxAge = maxRangeAgeNanos;
+        long newest = 0;
+        int count = 0;
+        double cx = 0, cy = 0, cz = 0;
+        for ( int anchorId = 0; anchorId < ANCHORS; anchorId++ ) {
+            long timestamp = snapshotTimestamps[anchorId];
+            if ( !anchorConfigured[anchorId] || timestamp == 0 || now - timestamp > maxAge )
+                continue;
+            usedX[count] = anchorPositions[anchorId * 3];
+            usedY[count] = anchorPositions[anchorId * 3 + 1];
+            usedZ[count] = anchorPositions[anchorId * 3 + 2];
+            usedRanges[count] = snapshotDistances[anchorId] / 1000.0;
+            cx += usedX[count];
+            cy += usedY[count];
+            cz += usedZ[count];
+            if ( newest == 0 || timestamp - newest > 0 )
+                newest = timestamp;
+            count++;
+        }
+        if ( count < MIN_ANCHORS )
+            return false;
+
+        // start from the previous position, or from the middle of the anchors
+        boolean planar = fixedHeight;
+        double x, y, z;
+        synchronized ( resultLock ) {
+            if ( resultTimestamps[receiverId] != 0 ) {
+                x = results[receiverId * RESULT_SIZE];
+                y = results[receiverId * RESULT_SIZE + 1];
+                z = results[receiverId * RESULT_SIZE + 2];
+            }
+            else {
+                x = cx / count;
+                y = cy / count;
+                z = cz / count;
+            }
+        }
+        if ( planar )
+            z = height;
+
+        for ( int iteration = 0, iterations = maxIterations; iteration < iterations; iteration++ ) {
+            // normal equations J'J * step = J'f of the range residuals f = |p - a| - r
+            double h00 = 0, h01 = 0, h02 = 0, h11 = 0, h12 = 0, h22 = 0;
+            double g0 = 0, g1 = 0, g2 = 0;
+            for ( int i = 0; i < count; i++ ) {
+                double dx = x - usedX[i];
+                double dy = y - usedY[i];
+                double dz = z - usedZ[i];
+                double d = Math.max( Math.sqrt( dx * dx + dy * dy + dz * dz ), 1e-9 );
+                double f = d - usedRanges[i];
+                double jx = dx / d;
+                double jy = dy / d;
+                double jz = planar ? 0 : dz / d;
+                h00 += jx * jx;
+                h01 += jx * jy;
+                h02 += jx * jz;
+                h11 += jy * jy;
+                h12 += jy * jz;
+                h22 += jz * jz;
+                g0 += jx * f;
+                g1 += jy * f;
+                g2 += jz * f;
+            }
+            double lambda = DAMPING * ( h00 + h11 + h22 ) + 1e-12;
+            h00 += lambda;
+            h11 += lambda;
+            h22 += planar ? 1 : lambda;
+
+            // solve the symmetric 3x3 system with Cramer's rule
+            double c00 = h11 * h22 - h12 * h12;
+            double c01 = h02 * h12 - h01 * h22;
+            double c02 = h01 * h12 - h02 * h11;
+            double det = h00 * c00 + h01 * c01 + h02 * c02;
+            if ( det == 0 || Double.isNaN( det ) )
+                return false;
+            double c11 = h00 * h22 - h02 * h02;
+            double c12 = h01 * h02 - h00 * h12;
+            double c22 = h00 * h11 - h01 * h01;
+            double sx = ( c00 * g0 + c01 * g1 + c02 * g2 ) / det;
+            double sy = ( c01 * g0 + c11 * g1 + c12 * g2 ) / det;
+            double sz = ( c02 * g0 + c12 * g1 + c22 * g2 ) / det;
+            x -= sx;
+            y -= sy;
+            z -= sz;
+            if ( sx * sx + sy * sy + sz * sz < CONVERGENCE * CONVERGENCE )
+                break;
+        }
+
+        double sum = 0;
+        for ( int i = 0; i < count; i++ ) {
+            double dx = x - usedX[i];
+            double dy = y - usedY[i];
+            double dz = z - usedZ[i];
+            double f = Math.sqrt( dx * dx + dy * dy + dz * dz ) - usedRanges[i];
+            sum += f * f;
+        }
+        double residual = Math.sqrt( sum / count );
+        if ( Double.isNaN( residual ) || Double.isInfinite( residual ) )
+            return false;
+
+        synchronized ( resultLock ) {
+            int offset = receiverId * RESULT_SIZE;
+            results[offset] = x;
+            results[offset + 1] = y;
+            results[offset + 2] = z;
+            results[offset + 3] = residual;
+            resultTimestamps[receiverId] = newest;
+            resultAnchorCounts[receiverId] = count;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,149 @@
+package com.marin2.decawave.unity3dplugin;
+
+import android.content.Context;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbManager;
+
+import com.felhr.usbserial.UsbSerialDevice;
+import com.felhr.usbserial.UsbSerialInterface;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Opens receivers as usb serial devices (115200 8N1, no flow control)
+ * and delivers their data from the usb thread.
+ */
+public class DecawaveUsbConnector implements DecawaveDeviceConnector<UsbDevice> {
+
+    /**
+     * Count of usb read requests kept queued for each device
+     */
+    private static final int READ_PIPELINE_DEPTH = 4;
+
+    private final UsbManager usbManager;
+    private volatile int latencyTimerMillis = -1;
+    private volatile int readTransferSize = -1;
+
+    /**
+     * Creates a connector
+     * @param context The context whose usb service is used to open devices
+     */
+    public DecawaveUsbConnector( Context context ) {
+        this.usbManager = (UsbManager)context.getSystemService( Context.USB_SERVICE );
+    }
+
+    /**
+     * Get the latency timer set on devices that support one
+     * @return milliseconds or -1 if the device default is kept
+     */
+    public int getLatencyTimerMillis() {
+        return latencyTimerMillis;
+    }
+
+    /**
+     * Set the latency timer of devices that hold received bytes in the chip (e.g. FTDI based receivers).
+     * Applies to devices opened after the call.
+     * @param latencyTimerMillis milliseconds (1 - 255) or -1 to keep the device default
+     */
+    public void setLatencyTimerMillis( int latencyTimerMillis ) {
+        this.latencyTimerMillis = latencyTimerMillis;
+    }
+
+    /**
+     * Get the size of one usb read transfer
+     * @return bytes or -1 if the driver default is kept
+     */
+    public int getReadTransferSize() {
+        return readTransferSize;
+    }
+
+    /**
+     * Set the size of one usb read transfer. Applies to devices opened after the call.
+     * @param readTransferSize bytes or -1 to keep the driver default
+     */
+    public void setReadTransferSize( int readTransferSize ) {
+        this.readTransferSize = readTransferSize;
+    }
+
+    @Override
+    public Connection open( String serial, UsbDevice usbDevice, final Listener listener ) {
+
+        UsbDeviceConnection connection;
+        final UsbSerialDevice serialDevice;
+        // initialize connection to device
+        try {
+            connection = usbManager.openDevice( usbDevice );
+        }
+        catch ( Exception exception ) {
+            listener.onError( "Exception on usb connection creation: " + exception.getClass().getName() + ": " + exception.getMessage() );
+            return null;
+        }
+
+        // initialize serial contract
+        try {
+            serialDevice = UsbSerialDevice.createUsbSerialDevice( usbDevice, connection );
+        }
+        catch ( Exception exception ) {
+            listener.onError( "Exception on serial creation: " + exception.getClass().getName() + ": " + exception.getMessage() );
+            return null;
+        }
+
+        // open serial connection (with several reads in flight so the endpoint never idles)
+        try {
+            serialDevice.setReadPipelineDepth( READ_PIPELINE_DEPTH );
+            if(!serialDevice.open()) {
+                listener.onError( "Could not open device " + serial );
+                return null;
+            }
+        }
+        catch ( Exception exception ) {
+            listener.onError( "Exception on open query: " + exception.getClass().getName() + ": " + exception.getMessage() );
+            return null;
+        }
+
+        // default settings and data callback
+        try {
+            serialDevice.setBaudRate( 115200 );
+            serialDevice.setDataBits( UsbSerialInterface.DATA_BITS_8);
+            serialDevice.setStopBits(UsbSerialInterface.STOP_BITS_1);
+            serialDevice.setParity(UsbSerialInterface.PARITY_NONE);
+            serialDevice.setFlowControl(UsbSerialInterface.FLOW_CONTROL_OFF);
+            if ( latencyTimerMillis > 0 && serialDevice instanceof UsbSerialInterface.UsbLatencyTimer ) {
+                if ( !( (UsbSerialInterface.UsbLatencyTimer)serialDevice ).setLatencyTimer( latencyTimerMillis ) )
+                    listener.onError( "Could not set the latency timer of \"" + serial + "\"" );
+            }
+            if ( readTransferSize > 0 )
+                serialDevice.setReadTransferSize( readTransferSize );
+            serialDevice.readBuffer( new UsbSerialInterface.UsbReadBufferCallback() {
+                @Override
+                public void onReceivedData( ByteBuffer bytes ) {
+                    listener.onReceivedData( bytes );
+                }
+            } );
+        }
+        catch ( Exception exception ) {
+            listener.onError( "Exception on setup: " + exception.getClass().getName() + ": " + exception.getMessage() );
+            try {
+                serialDevice.close();
+            }
+            catch ( Exception closingException ) {
+                listener.onError( "Exception on shutdown: " + closingException.getClass().getName() + ": " + closingException.getMessage() );
+            }
+            return null;
+        }
+
+        return new Connection() {
+            @Override
+            public void close() {
+                serialDevice.close();
+            }
+        };
+    }
+
+    @Override
+    public int getLiveThreadCount() {
+        return UsbSerialDevice.getLiveThreadCount();
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.marin2.decawave.unity3dplugin;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reports receiver devices from the USB attach and detach broadcasts.
+ * Only devices with the given vendor and product id are reported.
+ * A device without a serial number string is reported by its device name.
+ * The broadcasts arrive on the main looper while refresh may be called from any thread.
+ */
+public class DecawaveUsbDeviceSource extends BroadcastReceiver implements DecawaveDeviceSource<UsbDevice> {
+
+    private final Context context;
+    private final UsbManager usbManager;
+    private final int vendorId;
+    private final int productId;
+    /**
+     * Serial numbers of the reported devices by device name.
+     * A detached device is found by name, since its serial number may not be readable anymore.
+     */
+    private final ConcurrentHashMap<String, String> attachedSerials;
+    private volatile Listener<UsbDevice> listener;
+
+    /**
+     * Creates a device source
+     * @param context The context used to register the broadcast receiver
+     * @param vendorId The vendor id of the reported devices
+     * @param productId The product id of the reported devices
+     */
+    public DecawaveUsbDeviceSource( Context context, int vendorId, int productId ) {
+        this.context = context;
+        this.usbManager = (UsbManager)context.getSystemService( Context.USB_SERVICE );
+        this.vendorId = vendorId;
+        this.productId = productId;
+        attachedSerials = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void start( Listener<UsbDevice> listener ) {
+        this.listener = listener;
+        IntentFilter filter = new IntentFilter( UsbManager.ACTION_USB_DEVICE_ATTACHED );
+        filter.addAction( UsbManager.ACTION_USB_DEVICE_DETACHED );
+        context.registerReceiver( this, filter );
+        refresh();
+    }
+
+    @Override
+    public void refresh() {
+        HashMap<String, UsbDevice> foundDevices;
+        try {
+            foundDevices = usbManager.getDeviceList();
+        }
+        catch ( Exception exception ) {
+            error( "Exception on usb manager: ", exception );
+            return;
+        }
+        for ( UsbDevice device : foundDevices.values() ) {
+            attach( device );
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            context.unregisterReceiver( this );
+        }
+        catch ( Exception exception ) {
+            error( "Exception on receiver unregistering: ", exception );
+        }
+        attachedSerials.clear();
+        listener = null;
+    }
+
+    @Override
+    public void onReceive( Context context, Intent intent ) {
+        UsbDevice device = intent.getParcelableExtra( UsbManager.EXTRA_DEVICE );
+        if ( device == null )
+            return;
+        if ( UsbManager.ACTION_USB_DEVICE_ATTACHED.equals( intent.getAction() ) )
+            attach( device );
+        else if ( UsbManager.ACTION_USB_DEVICE_DETACHED.equals( intent.getAction() ) )
+            detach( device );
+    }
+
+    private void attach( UsbDevice device ) {
+        Listener<UsbDevice> current = listener;
+        if ( current == null )
+            return;
+        String serial;
+        try {
+            if ( device.getVendorId() != vendorId || device.getProductId() != productId )
+                return;
+            serial = device.getSerialNumber();
+        }
+        catch ( Exception exception ) {
+            current.onDeviceError( errorMessage( "Exception on usb device: ", exception ) );
+            return;
+        }
+        // boards without an iSerialNumber string have no serial number
+        if ( serial == null || serial.isEmpty() )
+            serial = device.getDeviceName();
+        attachedSerials.put( device.getDeviceName(), serial );
+        current.onDeviceAttached( serial, device );
+    }
+
+    private void detach( UsbDevice device ) {
+        Listener<UsbDevice> current = listener;
+        String serial = attachedSerials.remove( device.getDeviceName() );
+        if ( serial != null && current != null )
+            current.onDeviceDetached( serial );
+    }
+
+    private void error( String message, Exception exception ) {
+        Listener<UsbDevice> current = listener;
+        if ( current != null )
+            current.onDeviceError( errorMessage( message, exception ) );
+    }
+
+    private static String errorMessage( String message, Exception exception ) {
+        return message + exception.getClass().getName() + ": " + exception.getMessage();
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.felhr.deviceids;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/*
+ * Checks the hashed id table against a linear search of the driver tables
+ */
+public class DeviceIdsTest
+{
+    private static final int[][] TABLES = new int[][]{
+            FTDISioIds.getPackedIds(),
+            CP210xIds.getPackedIds(),
+            PL2303Ids.getPackedIds(),
+            CH34xIds.getPackedIds(),
+            CP2130Ids.getPackedIds()
+    };
+    private static final int[] DRIVERS = new int[]{
+            DeviceIds.DRIVER_FTDI,
+            DeviceIds.DRIVER_CP210X,
+            DeviceIds.DRIVER_PL2303,
+            DeviceIds.DRIVER_CH34X,
+            DeviceIds.DRIVER_CP2130
+    };
+
+    // The first driver whose table lists the id, the order the drivers were tried in before
+    private static int linearDriver(int packedId)
+    {
+        for(int i=0;i<=TABLES.length-1;i++)
+        {
+            for(int id : TABLES[i])
+            {
+                if(id == packedId)
+                    return DRIVERS[i];
+            }
+        }
+        return DeviceIds.DRIVER_NONE;
+    }
+
+    @Test
+    public void packId_masksTo16Bits()
+    {
+        assertEquals(0x04036001, DeviceIds.packId(0x0403, 0x6001));
+        assertEquals(0xFFFF0001, DeviceIds.packId(-1, 0x10001));
+    }
+
+    @Test
+    public void everyListedDevice_isFound()
+    {
+        for(int i=0;i<=TABLES.length-1;i++)
+        {
+            for(int id : TABLES[i])
+            {
+                int vid = id >>> 16;
+                int pid = id & 0xFFFF;
+                assertTrue(DeviceIds.isDeviceSupported(vid, pid, DRIVERS[i]));
+                assertEquals(linearDriver(id), DeviceIds.getDriver(vid, pid));
+            }
+        }
+    }
+
+    @Test
+    public void driverClasses_useTheTable()
+    {
+        assertTrue(FTDISioIds.isDeviceSupported(0x0403, 0x6001));
+        assertTrue(CP210xIds.isDeviceSupported(0x10C4, 0xEA60));
+        assertTrue(CH34xIds.isDeviceSupported(0x1a86, 0x7523));
+        assertFalse(CH34xIds.isDeviceSupported(0x0403, 0x6001));
+    }
+
+    @Test
+    public void unlistedDevices_areNotFound()
+    {
+        assertEquals(DeviceIds.DRIVER_NONE, DeviceIds.getDriver(0, 0));
+        assertEquals(DeviceIds.DRIVER_NONE, DeviceIds.getDriver(1366, 0x0105));
+        Random random = new Random(1);
+        for(int i=0;i<=100000-1;i++)
+        {
+            int vid = random.nextInt(0x10000);
+            int pid = random.nextInt(0x10000);
+            assertEquals(linearDriver(DeviceIds.packId(vid, pid)), DeviceIds.getDriver(vid, pid));
+        }
+    }
+}
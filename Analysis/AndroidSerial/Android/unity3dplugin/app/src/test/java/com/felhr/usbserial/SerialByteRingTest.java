@@ -0,0 +1,139 @@
+package com.felhr.usbserial;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SerialByteRingTest
+{
+    private static final long TIMEOUT = 5000;
+
+    @Test
+    public void capacity_isRoundedToPowerOfTwo()
+    {
+        assertEquals(2, new SerialByteRing(1).capacity());
+        assertEquals(16, new SerialByteRing(10).capacity());
+        assertEquals(SerialByteRing.DEFAULT_CAPACITY, new SerialByteRing().capacity());
+    }
+
+    @Test
+    public void bytes_wrapAroundInOrder()
+    {
+        SerialByteRing ring = new SerialByteRing(8);
+        byte[] dst = new byte[8];
+        for(int round=0;round<=9;round++)
+        {
+            byte[] src = new byte[]{(byte) round, (byte) (round + 1), (byte) (round + 2), (byte) 0xFF, (byte) round};
+            assertEquals(5, ring.offer(src, 0, src.length));
+            assertEquals(5, ring.available());
+            assertEquals(round, ring.read());
+            assertEquals(4, ring.read(dst, 0, 8));
+            assertEquals(round + 1, dst[0]);
+            assertEquals((byte) 0xFF, dst[2]);
+            assertEquals(round, dst[3]);
+            assertEquals(0, ring.available());
+        }
+        assertEquals(0, ring.getBytesDropped());
+    }
+
+    @Test
+    public void fullRing_dropsNewest()
+    {
+        SerialByteRing ring = new SerialByteRing(4);
+        assertEquals(3, ring.offer(new byte[]{1, 2, 3}, 0, 3));
+        ByteBuffer src = ByteBuffer.wrap(new byte[]{4, 5, 6});
+        assertEquals(1, ring.offer(src));
+        assertFalse(src.hasRemaining());
+        assertEquals(2, ring.getBytesDropped());
+
+        ByteBuffer dst = ByteBuffer.allocate(8);
+        assertEquals(4, ring.read(dst, false));
+        dst.flip();
+        assertEquals(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}), dst);
+    }
+
+    @Test
+    public void nonBlockingRead_returnsZeroWhenEmpty()
+    {
+        SerialByteRing ring = new SerialByteRing(4);
+        assertEquals(0, ring.read(ByteBuffer.allocate(4), false));
+        assertEquals(0, ring.read(new byte[4], 0, 0));
+    }
+
+    @Test
+    public void close_endsReads()
+    {
+        SerialByteRing ring = new SerialByteRing(4);
+        ring.offer(new byte[]{1}, 0, 1);
+        ring.close();
+        assertTrue(ring.isClosed());
+        assertEquals(-1, ring.read());
+        assertEquals(-1, ring.read(ByteBuffer.allocate(4), true));
+    }
+
+    @Test
+    public void blockedReader_isWokenByCloseAndData() throws InterruptedException
+    {
+        final SerialByteRing ring = new SerialByteRing(4);
+        final int[] results = new int[2];
+        Thread reader = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                results[0] = ring.read();
+                results[1] = ring.read();
+            }
+        };
+        reader.start();
+        Thread.sleep(20);
+        ring.offer(new byte[]{42}, 0, 1);
+        Thread.sleep(20);
+        ring.close();
+        reader.join(TIMEOUT);
+        assertFalse(reader.isAlive());
+        assertEquals(42, results[0]);
+        assertEquals(-1, results[1]);
+    }
+
+    @Test
+    public void concurrentStream_keepsOrder() throws InterruptedException
+    {
+        final int count = 1000000;
+        final SerialByteRing ring = new SerialByteRing(256);
+        Thread producer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                byte[] chunk = new byte[61];
+                int next = 0;
+                while(next < count)
+                {
+                    int length = Math.min(chunk.length, count - next);
+                    for(int i=0;i<=length-1;i++)
+                        chunk[i] = (byte) (next + i);
+                    // Offer only what fits, so nothing is dropped
+                    int queued = ring.offer(chunk, 0, Math.min(length, ring.capacity() - ring.available()));
+                    next += queued;
+                    if(queued == 0)
+                        Thread.yield();
+                }
+            }
+        };
+        producer.start();
+        byte[] dst = new byte[100];
+        int received = 0;
+        while(received < count)
+        {
+            int n = ring.read(dst, 0, dst.length);
+            for(int i=0;i<=n-1;i++)
+                assertEquals((byte) (received + i), dst[i]);
+            received += n;
+        }
+        producer.join(TIMEOUT);
+        assertEquals(0, ring.getBytesDropped());
+    }
+}
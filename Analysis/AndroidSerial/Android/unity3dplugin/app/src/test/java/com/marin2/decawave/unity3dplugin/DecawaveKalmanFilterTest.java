@@ -0,0 +1,123 @@
+package com.marin2.decawave.unity3dplugin;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the constant velocity range filter with a simulated walk
+ */
+public class DecawaveKalmanFilterTest {
+
+    private static final double[][] ANCHORS = { { 0, 0, 0 }, { 10, 0, 0.5 }, { 0, 8, 2.5 }, { 10, 8, 0.2 } };
+    private static final long START = 1000000000L;
+    private static final long STEP = 10000000L;
+
+    private DecawaveAnchors anchors;
+    private DecawaveKalmanFilter filter;
+
+    @Before
+    public void setUp() {
+        anchors = new DecawaveAnchors();
+        for ( int i = 0; i < ANCHORS.length; i++ )
+            anchors.setPosition( i, ANCHORS[i][0], ANCHORS[i][1], ANCHORS[i][2] );
+        filter = new DecawaveKalmanFilter( anchors );
+    }
+
+    private static int range( int anchorId, double x, double y, double z, double noise ) {
+        double[] anchor = ANCHORS[anchorId];
+        double dx = x - anchor[0];
+        double dy = y - anchor[1];
+        double dz = z - anchor[2];
+        return (int)Math.round( ( Math.sqrt( dx * dx + dy * dy + dz * dz ) + noise ) * 1000 );
+    }
+
+    @Test
+    public void uninitializedFilter_ignoresRanges() {
+        assertFalse( filter.isInitialized() );
+        assertFalse( filter.update( 0, 1000, START ) );
+        assertEquals( 0, filter.predict( START, new double[3] ) );
+        assertEquals( Double.POSITIVE_INFINITY, filter.getPositionError(), 0 );
+    }
+
+    @Test
+    public void noisyWalk_isTracked() {
+        Random random = new Random( 1 );
+        filter.initialize( 2, 2, 1, START );
+        double error = 0;
+        int count = 0;
+        double[] out = new double[6];
+        for ( int k = 1; k <= 2000; k++ ) {
+            long timestamp = START + k * STEP;
+            double seconds = k * STEP / 1e9;
+            double x = 2 + 0.5 * seconds;
+            double y = 2 + 0.3 * seconds;
+            int anchorId = k % ANCHORS.length;
+            assertTrue( filter.update( anchorId, range( anchorId, x, y, 1, random.nextGaussian() * 0.1 ), timestamp ) );
+            if ( k > 500 ) {
+                filter.predict( timestamp, out );
+                error += Math.hypot( out[0] - x, out[1] - y );
+                count++;
+            }
+        }
+        // far better than the 10 cm noise of a single range
+        assertTrue( "mean error " + error / count, error / count < 0.08 );
+        assertEquals( 0.5, out[3], 0.1 );
+        assertEquals( 0.3, out[4], 0.1 );
+        assertEquals( 2000, filter.getUpdateCount() );
+        assertTrue( filter.getPositionError() < 0.2 );
+    }
+
+    @Test
+    public void predict_extrapolatesVelocity() {
+        filter.initialize( 5, 4, 1, START );
+        for ( int k = 1; k <= 500; k++ ) {
+            double x = 5 + k * STEP / 1e9;
+            filter.update( k % ANCHORS.length, range( k % ANCHORS.length, x, 4, 1, 0 ), START + k * STEP );
+        }
+        double[] now = new double[3];
+        double[] later = new double[3];
+        long last = filter.predict( START + 500 * STEP, now );
+        assertEquals( START + 500 * STEP, last );
+        filter.predict( last + 1000000000L, later );
+        assertEquals( 1.0, later[0] - now[0], 0.1 );
+        assertEquals( 0, later[1] - now[1], 0.1 );
+    }
+
+    @Test
+    public void unknownAnchor_isIgnored() {
+        filter.initialize( 5, 4, 1, START );
+        assertFalse( filter.update( 7, 1000, START + STEP ) );
+        assertFalse( filter.update( -1, 1000, START + STEP ) );
+        assertEquals( 0, filter.getUpdateCount() );
+    }
+
+    @Test
+    public void longGap_resetsFilter() {
+        filter.setMaxGapMillis( 100 );
+        filter.initialize( 5, 4, 1, START );
+        assertTrue( filter.update( 0, range( 0, 5, 4, 1, 0 ), START + STEP ) );
+        assertFalse( filter.update( 0, range( 0, 5, 4, 1, 0 ), START + STEP + 200000000L ) );
+        assertFalse( filter.isInitialized() );
+    }
+
+    @Test
+    public void fixedHeight_keepsZ() {
+        filter.setFixedHeight( true, 1.3 );
+        filter.initialize( 5, 4, 0, START );
+        double[] out = new double[6];
+        filter.predict( START, out );
+        assertEquals( 1.3, out[2], 1e-9 );
+        for ( int k = 1; k <= 100; k++ )
+            filter.update( k % ANCHORS.length, range( k % ANCHORS.length, 5, 4, 1.3, 0 ), START + k * STEP );
+        filter.predict( START + 100 * STEP, out );
+        assertEquals( 1.3, out[2], 1e-9 );
+        assertEquals( 0, out[5], 1e-9 );
+        assertEquals( 5, out[0], 0.05 );
+        assertEquals( 4, out[1], 0.05 );
+    }
+
+}
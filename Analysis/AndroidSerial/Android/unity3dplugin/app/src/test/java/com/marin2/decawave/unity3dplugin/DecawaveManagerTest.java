@@ -0,0 +1,248 @@
+package com.marin2.decawave.unity3dplugin;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the device bookkeeping of DecawaveManager with a fake device source and connector
+ */
+public class DecawaveManagerTest {
+
+    private static class FakeSource implements DecawaveDeviceSource<String> {
+
+        Listener<String> listener;
+        int refreshCount;
+        boolean stopped;
+
+        @Override
+        public void start( Listener<String> listener ) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void refresh() {
+            refreshCount++;
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+    }
+
+    private static class FakeConnector implements DecawaveDeviceConnector<String> {
+
+        final Map<String, Listener> listeners = new HashMap<>();
+        final Map<String, Integer> openCounts = new HashMap<>();
+        final Map<String, Integer> closeCounts = new HashMap<>();
+        boolean failNextOpen;
+
+        @Override
+        public Connection open( final String serial, String device, Listener listener ) {
+            Integer opened = openCounts.get( serial );
+            openCounts.put( serial, opened == null ? 1 : opened + 1 );
+            if ( failNextOpen ) {
+                failNextOpen = false;
+                listener.onError( "Could not open device " + serial );
+                return null;
+            }
+            listeners.put( serial, listener );
+            return new Connection() {
+                @Override
+                public void close() {
+                    Integer closed = closeCounts.get( serial );
+                    closeCounts.put( serial, closed == null ? 1 : closed + 1 );
+                    listeners.remove( serial );
+                }
+            };
+        }
+
+        @Override
+        public int getLiveThreadCount() {
+            return 0;
+        }
+
+        void send( String serial, String data ) {
+            listeners.get( serial ).onReceivedData( ByteBuffer.wrap( data.getBytes() ) );
+        }
+
+        int opened( String serial ) {
+            Integer count = openCounts.get( serial );
+            return count == null ? 0 : count;
+        }
+
+        int closed( String serial ) {
+            Integer count = closeCounts.get( serial );
+            return count == null ? 0 : count;
+        }
+    }
+
+    private FakeSource source;
+    private FakeConnector connector;
+    private DecawaveManager manager;
+
+    private static String frame( int anchorId, int distance ) {
+        return String.format( "ma%02x t01 %08x 00000000 0000 00 00000000 0000 0000 t1", anchorId, distance );
+    }
+
+    @Before
+    public void setUp() {
+        source = new FakeSource();
+        connector = new FakeConnector();
+        manager = new DecawaveManager( source, connector );
+    }
+
+    @After
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    @Test
+    public void attach_opensDeviceOnce() {
+        source.listener.onDeviceAttached( "A", "device A" );
+        source.listener.onDeviceAttached( "A", "device A" );
+        assertEquals( 1, connector.opened( "A" ) );
+        assertEquals( 1, manager.activeDeviceCount() );
+        assertArrayEquals( new String[] { "A" }, manager.deviceSerials() );
+        assertNotNull( manager.getParser( "A" ) );
+    }
+
+    @Test
+    public void receivedData_reachesParserAndExport() {
+        source.listener.onDeviceAttached( "A", "device A" );
+        source.listener.onDeviceAttached( "B", "device B" );
+        connector.send( "A", frame( 1, 1000 ) );
+        connector.send( "B", frame( 2, 2000 ) );
+
+        ByteBuffer target = ByteBuffer.allocate( DecawavePacketQueue.RECORD_SIZE * 4 ).order( ByteOrder.LITTLE_ENDIAN );
+        assertEquals( 2, manager.exportRanges( target ) );
+        int sum = 0;
+        for ( int i = 0; i < 2; i++ ) {
+            int record = i * DecawavePacketQueue.RECORD_SIZE;
+            int receiverId = target.getInt( record + DecawavePacketQueue.RECORD_RECEIVER_ID_OFFSET );
+            int anchorId = target.getInt( record + DecawavePacketQueue.RECORD_ANCHOR_ID_OFFSET );
+            String serial = anchorId == 1 ? "A" : "B";
+            assertEquals( manager.getReceiverId( serial ), receiverId );
+            assertEquals( anchorId * 1000, target.getInt( record + DecawavePacketQueue.RECORD_DISTANCE_OFFSET ) );
+            sum += anchorId;
+        }
+        assertEquals( 3, sum );
+        assertNotEquals( manager.getReceiverId( "A" ), manager.getReceiverId( "B" ) );
+    }
+
+    @Test
+    public void detach_closesDevice() {
+        source.listener.onDeviceAttached( "A", "device A" );
+        source.listener.onDeviceDetached( "A" );
+        source.listener.onDeviceDetached( "A" );
+        source.listener.onDeviceDetached( "unknown" );
+        assertEquals( 1, connector.closed( "A" ) );
+        assertEquals( 0, manager.activeDeviceCount() );
+        assertNull( manager.getParser( "A" ) );
+    }
+
+    @Test
+    public void nullSerial_isLoggedAndIgnored() {
+        source.listener.onDeviceAttached( null, "device" );
+        source.listener.onDeviceDetached( null );
+        assertEquals( 0, manager.activeDeviceCount() );
+        assertEquals( 0, connector.opened( null ) );
+        assertTrue( manager.popLogMessage().contains( "without a serial number" ) );
+    }
+
+    @Test
+    public void receiverId_isKeptOnReconnect() {
+        source.listener.onDeviceAttached( "A", "device A" );
+        source.listener.onDeviceAttached( "B", "device B" );
+        int id = manager.getReceiverId( "A" );
+        source.listener.onDeviceDetached( "A" );
+        source.listener.onDeviceAttached( "A", "device A" );
+        assertEquals( id, manager.getReceiverId( "A" ) );
+        assertEquals( -1, manager.getReceiverId( "unknown" ) );
+    }
+
+    @Test
+    public void receiverIds_areReusedWhenExhausted() {
+        for ( int i = 0; i < DecawaveSolver.MAX_RECEIVERS; i++ )
+            source.listener.onDeviceAttached( "R" + i, "device" );
+        for ( int i = 0; i < DecawaveSolver.MAX_RECEIVERS; i++ )
+            assertEquals( i, manager.getReceiverId( "R" + i ) );
+
+        // every solver id is taken by a connected receiver
+        source.listener.onDeviceAttached( "extra", "device" );
+        assertTrue( manager.getReceiverId( "extra" ) >= DecawaveSolver.MAX_RECEIVERS );
+        boolean logged = false;
+        while ( manager.hasLogMessage() )
+            logged |= manager.popLogMessage().contains( "are not solved" );
+        assertTrue( logged );
+
+        // the id of a disconnected receiver goes to the next new one
+        source.listener.onDeviceDetached( "R5" );
+        source.listener.onDeviceAttached( "new", "device" );
+        assertEquals( 5, manager.getReceiverId( "new" ) );
+        assertEquals( -1, manager.getReceiverId( "R5" ) );
+
+        // and a receiver beyond the solver moves in once an id is free
+        source.listener.onDeviceDetached( "R7" );
+        source.listener.onDeviceDetached( "extra" );
+        source.listener.onDeviceAttached( "extra", "device" );
+        assertEquals( 7, manager.getReceiverId( "extra" ) );
+    }
+
+    @Test
+    public void failedOpen_isLoggedAndRetried() {
+        connector.failNextOpen = true;
+        source.listener.onDeviceAttached( "A", "device A" );
+        assertEquals( 0, manager.activeDeviceCount() );
+        boolean logged = false;
+        while ( manager.hasLogMessage() )
+            logged |= manager.popLogMessage().contains( "Could not open device A" );
+        assertTrue( logged );
+
+        source.listener.onDeviceAttached( "A", "device A" );
+        assertEquals( 2, connector.opened( "A" ) );
+        assertEquals( 1, manager.activeDeviceCount() );
+    }
+
+    @Test
+    public void refreshDevices_asksSource() {
+        manager.refreshDevices();
+        assertEquals( 1, source.refreshCount );
+    }
+
+    @Test
+    public void shutdown_stopsSourceAndClosesDevices() {
+        source.listener.onDeviceAttached( "A", "device A" );
+        source.listener.onDeviceAttached( "B", "device B" );
+        manager.shutdown();
+        assertTrue( source.stopped );
+        assertEquals( 1, connector.closed( "A" ) );
+        assertEquals( 1, connector.closed( "B" ) );
+        assertEquals( 0, manager.activeDeviceCount() );
+    }
+
+    @Test
+    public void parserThreads_parseAndStopOnDetach() throws InterruptedException {
+        manager.setParserThreadsEnabled( true );
+        source.listener.onDeviceAttached( "A", "device A" );
+        assertEquals( 1, manager.liveThreadCount() );
+        connector.send( "A", frame( 7, 700 ) );
+        DecawaveParser parser = manager.getParser( "A" );
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( !parser.hasPacket() && System.currentTimeMillis() < deadline )
+            Thread.sleep( 1 );
+        assertEquals( 700, parser.popPacket().getDistanceInMillimeters() );
+
+        source.listener.onDeviceDetached( "A" );
+        assertEquals( 0, manager.liveThreadCount() );
+    }
+
+}
@@ -0,0 +1,161 @@
+package com.marin2.decawave.unity3dplugin;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the single producer single consumer packet queue
+ */
+public class DecawavePacketQueueTest {
+
+    @Test
+    public void capacity_isRoundedToPowerOfTwo() {
+        assertEquals( 2, new DecawavePacketQueue( 0 ).capacity() );
+        assertEquals( 2, new DecawavePacketQueue( 2 ).capacity() );
+        assertEquals( 8, new DecawavePacketQueue( 5 ).capacity() );
+        assertEquals( 1024, new DecawavePacketQueue( 1024 ).capacity() );
+        assertEquals( DecawavePacketQueue.DEFAULT_CAPACITY, new DecawavePacketQueue().capacity() );
+    }
+
+    @Test
+    public void packets_areTakenInOrder() {
+        DecawavePacketQueue queue = new DecawavePacketQueue( 8 );
+        assertTrue( queue.isEmpty() );
+        for ( int i = 0; i < 5; i++ )
+            queue.add( i, i * 100, 1000 + i );
+        assertEquals( 5, queue.size() );
+        assertEquals( 1000, queue.getOldestTimestamp() );
+
+        int[] anchorIds = new int[8];
+        int[] distances = new int[8];
+        long[] timestamps = new long[8];
+        assertEquals( 2, queue.drainTo( anchorIds, distances, timestamps, 1, 2 ) );
+        assertEquals( 0, anchorIds[1] );
+        assertEquals( 1, anchorIds[2] );
+        assertEquals( 1001, queue.getLastTakenTimestamp() );
+        assertEquals( 3, queue.drainTo( anchorIds, distances, timestamps ) );
+        assertEquals( 2, anchorIds[0] );
+        assertEquals( 400, distances[2] );
+        assertEquals( 1004, timestamps[2] );
+        assertTrue( queue.isEmpty() );
+        assertEquals( 0, queue.getOldestTimestamp() );
+        assertEquals( 0, queue.getDroppedCount() );
+    }
+
+    @Test
+    public void fullValueRange_isKept() {
+        DecawavePacketQueue queue = new DecawavePacketQueue( 4 );
+        queue.add( -1, Integer.MIN_VALUE, Long.MAX_VALUE );
+        queue.add( Integer.MAX_VALUE, -1, 1 );
+        int[] anchorIds = new int[2];
+        int[] distances = new int[2];
+        long[] timestamps = new long[2];
+        assertEquals( 2, queue.drainTo( anchorIds, distances, timestamps ) );
+        assertArrayEquals( new int[] { -1, Integer.MAX_VALUE }, anchorIds );
+        assertArrayEquals( new int[] { Integer.MIN_VALUE, -1 }, distances );
+        assertArrayEquals( new long[] { Long.MAX_VALUE, 1 }, timestamps );
+    }
+
+    @Test
+    public void overrun_dropsOldestAndCounts() {
+        DecawavePacketQueue queue = new DecawavePacketQueue( 4 );
+        for ( int i = 0; i < 10; i++ )
+            queue.add( i, i, i + 1 );
+        assertTrue( queue.isOverrun() );
+        assertEquals( 4, queue.size() );
+        int[] anchorIds = new int[8];
+        assertEquals( 4, queue.drainTo( anchorIds, new int[8], new long[8] ) );
+        assertArrayEquals( new int[] { 6, 7, 8, 9 }, Arrays.copyOf( anchorIds, 4 ) );
+        assertEquals( 6, queue.getDroppedCount() );
+        assertFalse( queue.isOverrun() );
+    }
+
+    @Test
+    public void replaceBacklog_dropsQueuedPackets() {
+        DecawavePacketQueue queue = new DecawavePacketQueue( 4 );
+        for ( int i = 0; i < 6; i++ )
+            queue.add( 1, i, i + 1 );
+        queue.replaceBacklog( new int[] { 1, 2 }, new int[] { 10, 20 }, new long[] { 7, 8 }, 2 );
+        assertEquals( 2, queue.size() );
+        assertEquals( 7, queue.getOldestTimestamp() );
+        queue.add( 3, 30, 9 );
+        int[] anchorIds = new int[4];
+        int[] distances = new int[4];
+        assertEquals( 3, queue.drainTo( anchorIds, distances, new long[4] ) );
+        assertArrayEquals( new int[] { 1, 2, 3, 0 }, anchorIds );
+        assertArrayEquals( new int[] { 10, 20, 30, 0 }, distances );
+        // the two new packets stand for two of the six queued ones
+        assertEquals( 4, queue.getDroppedCount() );
+    }
+
+    @Test
+    public void clear_emptiesQueue() {
+        DecawavePacketQueue queue = new DecawavePacketQueue( 4 );
+        queue.add( 1, 1, 1 );
+        queue.replaceBacklog( new int[] { 2 }, new int[] { 2 }, new long[] { 2 }, 1 );
+        queue.add( 3, 3, 3 );
+        queue.clear();
+        assertTrue( queue.isEmpty() );
+        assertEquals( 0, queue.size() );
+    }
+
+    @Test
+    public void drainToBuffer_writesRecords() {
+        DecawavePacketQueue queue = new DecawavePacketQueue( 8 );
+        queue.add( 5, 1234, 99 );
+        queue.add( 6, 5678, 100 );
+        queue.add( 7, 9, 101 );
+        // room for two records after an offset of 4 bytes
+        ByteBuffer target = ByteBuffer.allocateDirect( 4 + 2 * DecawavePacketQueue.RECORD_SIZE + 10 );
+        target.position( 4 );
+        assertEquals( 2, queue.drainTo( target, 42 ) );
+        assertEquals( 4 + 2 * DecawavePacketQueue.RECORD_SIZE, target.position() );
+        assertEquals( ByteOrder.LITTLE_ENDIAN, target.order() );
+        int record = 4 + DecawavePacketQueue.RECORD_SIZE;
+        assertEquals( 42, target.getInt( record + DecawavePacketQueue.RECORD_RECEIVER_ID_OFFSET ) );
+        assertEquals( 6, target.getInt( record + DecawavePacketQueue.RECORD_ANCHOR_ID_OFFSET ) );
+        assertEquals( 5678, target.getInt( record + DecawavePacketQueue.RECORD_DISTANCE_OFFSET ) );
+        assertEquals( 0, target.getInt( record + DecawavePacketQueue.RECORD_RESERVED_OFFSET ) );
+        assertEquals( 100, target.getLong( record + DecawavePacketQueue.RECORD_TIMESTAMP_OFFSET ) );
+        assertEquals( 1, queue.size() );
+    }
+
+    @Test
+    public void concurrentProducer_losesNothingUncounted() throws InterruptedException {
+        final int count = 200000;
+        final DecawavePacketQueue queue = new DecawavePacketQueue( 64 );
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for ( int i = 1; i <= count; i++ )
+                    queue.add( i & 0xff, i, i );
+            }
+        };
+        producer.start();
+        int[] anchorIds = new int[16];
+        int[] distances = new int[16];
+        long[] timestamps = new long[16];
+        long taken = 0;
+        long last = 0;
+        while ( producer.isAlive() || !queue.isEmpty() ) {
+            int n = queue.drainTo( anchorIds, distances, timestamps );
+            for ( int i = 0; i < n; i++ ) {
+                // every packet is intact and newer than the one before
+                assertEquals( distances[i], timestamps[i] );
+                assertEquals( distances[i] & 0xff, anchorIds[i] );
+                assertTrue( timestamps[i] > last );
+                last = timestamps[i];
+            }
+            taken += n;
+        }
+        producer.join();
+        assertEquals( count, last );
+        assertEquals( count, taken + queue.getDroppedCount() );
+    }
+
+}
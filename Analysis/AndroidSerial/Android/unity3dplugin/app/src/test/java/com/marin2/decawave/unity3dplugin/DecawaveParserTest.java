@@ -0,0 +1,248 @@
+package com.marin2.decawave.unity3dplugin;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the range frame state machine of DecawaveParser
+ */
+public class DecawaveParserTest {
+
+    private static String frame( int anchorId, int distance ) {
+        return String.format( "ma%02x t01 %08x 00000000 0000 00 00000000 0000 0000 t1", anchorId, distance );
+    }
+
+    private static int drain( DecawaveParser parser, int[] anchorIds, int[] distances ) {
+        return parser.drainTo( anchorIds, distances, new long[anchorIds.length] );
+    }
+
+    @Test
+    public void frame_isParsed() {
+        DecawaveParser parser = new DecawaveParser( "test" );
+        parser.put( frame( 0x1a, 0x1234 ).getBytes() );
+        DecawavePacket packet = parser.popPacket();
+        assertEquals( 0x1a, packet.getAnchorId() );
+        assertEquals( 0x1234, packet.getDistanceInMillimeters() );
+        assertFalse( parser.hasPacket() );
+    }
+
+    @Test
+    public void frameSplitIntoSingleBytes_isParsed() {
+        DecawaveParser parser = new DecawaveParser( "test" );
+        byte[] data = ( frame( 3, 1000 ) + frame( 4, 2000 ) ).getBytes();
+        for ( int i = 0; i < data.length; i++ )
+            parser.put( data, i, 1 );
+        int[] anchorIds = new int[4];
+        int[] distances = new int[4];
+        assertEquals( 2, drain( parser, anchorIds, distances ) );
+        assertEquals( 3, anchorIds[0] );
+        assertEquals( 1000, distances[0] );
+        assertEquals( 4, anchorIds[1] );
+        assertEquals( 2000, distances[1] );
+    }
+
+    @Test
+    public void frameAfterTruncatedFrame_isParsed() {
+        String full = frame( 0x42, 0xabcdef );
+        for ( int k = 1; k < full.length(); k++ ) {
+            DecawaveParser parser = new DecawaveParser( "test" );
+            parser.put( ( full.substring( 0, k ) + full ).getBytes() );
+            int[] anchorIds = new int[4];
+            int[] distances = new int[4];
+            assertEquals( "prefix length " + k, 1, drain( parser, anchorIds, distances ) );
+            assertEquals( "prefix length " + k, 0x42, anchorIds[0] );
+            assertEquals( "prefix length " + k, 0xabcdef, distances[0] );
+        }
+    }
+
+    @Test
+    public void frameAfterTruncatedFrame_isParsedAcrossChunks() {
+        String full = frame( 7, 77 );
+        for ( int k = 1; k < full.length(); k++ ) {
+            DecawaveParser parser = new DecawaveParser( "test" );
+            byte[] data = ( full.substring( 0, k ) + full ).getBytes();
+            // split right after the truncated frame, so the resync has to reach back into the previous chunk
+            parser.put( data, 0, k + 2 );
+            parser.put( data, k + 2, data.length - k - 2 );
+            assertEquals( "prefix length " + k, 7, parser.popPacket().getAnchorId() );
+            assertFalse( parser.hasPacket() );
+        }
+    }
+
+    @Test
+    public void separatorHoldingM_doesNotBreakFrame() {
+        char[] chars = frame( 9, 900 ).toCharArray();
+        for ( int i = 0; i < chars.length; i++ ) {
+            if ( chars[i] == ' ' )
+                chars[i] = 'm';
+        }
+        DecawaveParser parser = new DecawaveParser( "test" );
+        parser.put( new String( chars ).getBytes() );
+        DecawavePacket packet = parser.popPacket();
+        assertEquals( 9, packet.getAnchorId() );
+        assertEquals( 900, packet.getDistanceInMillimeters() );
+    }
+
+    @Test
+    public void overlappingFrameStarts_findEveryFrame() {
+        String data = "mma" + "ma0" + frame( 1, 10 ) + "xxma" + frame( 2, 20 ).substring( 0, 30 ) + frame( 3, 30 );
+        DecawaveParser parser = new DecawaveParser( "test" );
+        parser.put( ByteBuffer.wrap( data.getBytes() ) );
+        int[] anchorIds = new int[4];
+        int[] distances = new int[4];
+        assertEquals( 2, drain( parser, anchorIds, distances ) );
+        assertEquals( 1, anchorIds[0] );
+        assertEquals( 3, anchorIds[1] );
+        assertEquals( 30, distances[1] );
+    }
+
+    @Test
+    public void uppercaseHex_isParsed() {
+        DecawaveParser parser = new DecawaveParser( "test" );
+        parser.put( frame( 0xab, 0xcafe ).toUpperCase().replace( "MA", "ma" ).replace( "T", "t" ).getBytes() );
+        DecawavePacket packet = parser.popPacket();
+        assertEquals( 0xab, packet.getAnchorId() );
+        assertEquals( 0xcafe, packet.getDistanceInMillimeters() );
+    }
+
+    @Test
+    public void invalidHex_dropsFrame() {
+        DecawaveParser parser = new DecawaveParser( "test" );
+        parser.put( frame( 1, 1 ).replace( "00000001", "0000000g" ).getBytes() );
+        assertFalse( parser.hasPacket() );
+    }
+
+    @Test
+    public void listenerAndLatestRanges_seeEveryFrame() {
+        DecawaveParser parser = new DecawaveParser( "test" );
+        final int[] received = new int[2];
+        parser.setRangeListener( new DecawaveRangeListener() {
+            @Override
+            public void onRange( int anchorId, int distanceInMillimeters, long timestampNanos ) {
+                received[0]++;
+                received[1] = distanceInMillimeters;
+            }
+        } );
+        parser.put( ( frame( 5, 500 ) + frame( 5, 501 ) ).getBytes() );
+        assertEquals( 2, received[0] );
+        assertEquals( 501, received[1] );
+        long[] range = new long[2];
+        assertEquals( DecawaveRangeTable.READ_OK, parser.getLatestRanges().get( 5, range ) );
+        assertEquals( 501, range[0] );
+    }
+
+    @Test
+    public void concurrentConsumers_takeEveryPacketOnce() throws InterruptedException {
+        final int count = 2000;
+        final DecawaveParser parser = new DecawaveParser( "test", 4096, DecawaveParser.BACKLOG_DROP_OLDEST );
+        final AtomicIntegerArray seen = new AtomicIntegerArray( count );
+        final AtomicBoolean producing = new AtomicBoolean( true );
+        Thread popper = new Thread() {
+            @Override
+            public void run() {
+                while ( producing.get() || parser.hasPacket() ) {
+                    try {
+                        seen.incrementAndGet( parser.popPacket().getDistanceInMillimeters() );
+                    }
+                    catch ( NoSuchElementException exception ) {
+                        Thread.yield();
+                    }
+                }
+            }
+        };
+        Thread drainer = new Thread() {
+            @Override
+            public void run() {
+                int[] anchorIds = new int[8];
+                int[] distances = new int[8];
+                long[] timestamps = new long[8];
+                while ( producing.get() || parser.hasPacket() ) {
+                    int n = parser.drainTo( anchorIds, distances, timestamps );
+                    for ( int i = 0; i < n; i++ )
+                        seen.incrementAndGet( distances[i] );
+                }
+            }
+        };
+        popper.start();
+        drainer.start();
+        for ( int i = 0; i < count; i++ )
+            parser.put( frame( i & 0xff, i ).getBytes() );
+        producing.set( false );
+        popper.join( 10000 );
+        drainer.join( 10000 );
+        for ( int i = 0; i < count; i++ )
+            assertEquals( "distance " + i, 1, seen.get( i ) );
+        assertEquals( 0, parser.getDroppedPacketCount() );
+    }
+
+    @Test
+    public void dropOldestBacklog_keepsNewestPackets() {
+        DecawaveParser parser = new DecawaveParser( "test", 16, DecawaveParser.BACKLOG_DROP_OLDEST );
+        assertEquals( 16, parser.getBacklogCapacity() );
+        for ( int i = 0; i < 100; i++ )
+            parser.put( frame( i % 4, 1000 + i ).getBytes() );
+        assertEquals( 16, parser.getBacklogSize() );
+        assertTrue( parser.getOldestPacketAgeNanos() >= 0 );
+        int[] anchorIds = new int[32];
+        int[] distances = new int[32];
+        assertEquals( 16, drain( parser, anchorIds, distances ) );
+        for ( int i = 0; i < 16; i++ )
+            assertEquals( 1084 + i, distances[i] );
+        assertEquals( 84, parser.getDroppedPacketCount() );
+        assertEquals( 0, parser.getOldestPacketAgeNanos() );
+    }
+
+    @Test
+    public void coalescingBacklog_keepsLatestRangePerAnchor() {
+        DecawaveParser parser = new DecawaveParser( "test", 16, DecawaveParser.BACKLOG_COALESCE_PER_ANCHOR );
+        for ( int i = 0; i < 100; i++ )
+            parser.put( frame( i % 4, 1000 + i ).getBytes() );
+        int[] anchorIds = new int[32];
+        int[] distances = new int[32];
+        assertEquals( 4, drain( parser, anchorIds, distances ) );
+        for ( int i = 0; i < 4; i++ ) {
+            // oldest first, one packet per anchor
+            assertEquals( ( 96 + i ) % 4, anchorIds[i] );
+            assertEquals( 1096 + i, distances[i] );
+        }
+        assertEquals( 96, parser.getDroppedPacketCount() );
+
+        // without an overrun the backlog is taken as it is
+        for ( int i = 0; i < 3; i++ )
+            parser.put( frame( 1, 2000 + i ).getBytes() );
+        assertEquals( 3, drain( parser, anchorIds, distances ) );
+        assertEquals( 2002, distances[2] );
+        assertEquals( 96, parser.getDroppedPacketCount() );
+    }
+
+    @Test
+    public void coalescingBacklog_skipsRangesAlreadyTaken() {
+        DecawaveParser parser = new DecawaveParser( "test", 4, DecawaveParser.BACKLOG_COALESCE_PER_ANCHOR );
+        parser.put( frame( 1, 100 ).getBytes() );
+        assertEquals( 100, parser.popPacket().getDistanceInMillimeters() );
+        for ( int i = 0; i < 10; i++ )
+            parser.put( frame( 2, 200 + i ).getBytes() );
+        // anchor 1 has nothing newer than the packet already taken
+        DecawavePacket packet = parser.popPacket();
+        assertEquals( 2, packet.getAnchorId() );
+        assertEquals( 209, packet.getDistanceInMillimeters() );
+        assertFalse( parser.hasPacket() );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void unknownBacklogPolicy_isRejected() {
+        new DecawaveParser( "test" ).setBacklogPolicy( 7 );
+    }
+
+    @Test( expected = NoSuchElementException.class )
+    public void popPacket_throwsWhenEmpty() {
+        new DecawaveParser( "test" ).popPacket();
+    }
+
+}
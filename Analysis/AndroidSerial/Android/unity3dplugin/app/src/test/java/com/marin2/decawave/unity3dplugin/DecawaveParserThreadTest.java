@@ -0,0 +1,73 @@
+package com.marin2.decawave.unity3dplugin;
+
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the hand-over of received data to DecawaveParserThread
+ */
+public class DecawaveParserThreadTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private static String frame( int anchorId, int distance ) {
+        return String.format( "ma%02x t01 %08x 00000000 0000 00 00000000 0000 0000 t1", anchorId, distance );
+    }
+
+    private static void waitForPackets( DecawaveParser parser, int count ) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while ( parser.getBacklogSize() < count && System.currentTimeMillis() < deadline )
+            Thread.sleep( 1 );
+    }
+
+    @Test
+    public void offeredData_isParsed() throws InterruptedException {
+        DecawaveParser parser = new DecawaveParser( "test" );
+        DecawaveParserThread thread = new DecawaveParserThread( parser );
+        thread.start();
+        byte[] data = ( frame( 1, 100 ) + frame( 2, 200 ) ).getBytes();
+        assertTrue( thread.offer( data, 0, data.length ) );
+        waitForPackets( parser, 2 );
+        assertEquals( 100, parser.popPacket().getDistanceInMillimeters() );
+        assertEquals( 200, parser.popPacket().getDistanceInMillimeters() );
+        assertTrue( thread.stopParsing( TIMEOUT ) );
+    }
+
+    @Test
+    public void listenerException_isLoggedAndParsingGoesOn() throws InterruptedException {
+        DecawaveParser parser = new DecawaveParser( "test" );
+        parser.setRangeListener( new DecawaveRangeListener() {
+            @Override
+            public void onRange( int anchorId, int distanceInMillimeters, long timestampNanos ) {
+                if ( anchorId == 1 )
+                    throw new IllegalStateException( "broken listener" );
+            }
+        } );
+        ConcurrentLinkedQueue<String> log = new ConcurrentLinkedQueue<>();
+        DecawaveParserThread thread = new DecawaveParserThread( parser, log );
+        thread.start();
+        byte[] first = frame( 1, 100 ).getBytes();
+        byte[] second = frame( 2, 200 ).getBytes();
+        thread.offer( first, 0, first.length );
+        thread.offer( second, 0, second.length );
+        waitForPackets( parser, 2 );
+        assertEquals( 2, parser.getBacklogSize() );
+        assertTrue( thread.isAlive() );
+        assertEquals( 1, thread.getErrorCount() );
+        assertTrue( log.peek().contains( "broken listener" ) );
+        assertTrue( thread.stopParsing( TIMEOUT ) );
+    }
+
+    @Test
+    public void exhaustedPool_dropsAndCounts() {
+        DecawaveParserThread thread = new DecawaveParserThread( new DecawaveParser( "test" ), 2, 4 );
+        byte[] data = new byte[10];
+        // the thread is not started, so nothing is returned to the pool
+        assertFalse( thread.offer( data, 0, data.length ) );
+        assertEquals( 2, thread.getDroppedBytes() );
+    }
+
+}
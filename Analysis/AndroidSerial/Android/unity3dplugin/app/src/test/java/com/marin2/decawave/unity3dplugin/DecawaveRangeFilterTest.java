@@ -0,0 +1,95 @@
+package com.marin2.decawave.unity3dplugin;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the Hampel and speed tests of the range filter
+ */
+public class DecawaveRangeFilterTest {
+
+    private static final long STEP = 10000000L;
+
+    @Test
+    public void spikes_areRejected() {
+        DecawaveRangeFilter filter = new DecawaveRangeFilter();
+        Random random = new Random( 2 );
+        long timestamp = 1;
+        int spikes = 0;
+        int spikesAccepted = 0;
+        int rangesRejected = 0;
+        for ( int k = 0; k < 5000; k++ ) {
+            timestamp += STEP;
+            // walking away at 0.05 m/s with 8 cm noise, every 20th range a reflection 2 - 6 m too long
+            int distance = 4000 + (int)( k * 0.5 ) + (int)( random.nextGaussian() * 80 );
+            boolean spike = random.nextInt( 20 ) == 0;
+            if ( spike ) {
+                distance += 2000 + random.nextInt( 4000 );
+                spikes++;
+            }
+            boolean accepted = filter.accept( 7, distance, timestamp );
+            if ( spike && accepted )
+                spikesAccepted++;
+            if ( !spike && !accepted )
+                rangesRejected++;
+        }
+        assertEquals( 0, spikesAccepted );
+        assertTrue( "rejected " + rangesRejected, rangesRejected < 5000 / 100 );
+        assertEquals( filter.getOutlierCount() + filter.getSpeedRejectionCount(), filter.getRejectedCount() );
+        assertEquals( filter.getRejectedCount(), filter.getRejectedCount( 7 ) );
+        assertEquals( 5000 - filter.getRejectedCount(), filter.getAcceptedCount() );
+        assertTrue( spikes > 0 );
+    }
+
+    @Test
+    public void realJump_isAcceptedWithinAWindow() {
+        DecawaveRangeFilter filter = new DecawaveRangeFilter();
+        long timestamp = 1;
+        for ( int k = 0; k < 50; k++ )
+            assertTrue( filter.accept( 3, 4000, timestamp += STEP ) );
+        int rejected = 0;
+        while ( !filter.accept( 3, 12000, timestamp += STEP ) ) {
+            rejected++;
+            assertTrue( rejected <= 2 * DecawaveRangeFilter.DEFAULT_WINDOW_SIZE );
+        }
+        // the new distance is followed from then on
+        assertTrue( filter.accept( 3, 12010, timestamp += STEP ) );
+        assertFalse( filter.accept( 3, 4000, timestamp + STEP ) );
+    }
+
+    @Test
+    public void fastChange_isRejectedBySpeed() {
+        DecawaveRangeFilter filter = new DecawaveRangeFilter();
+        assertTrue( filter.accept( 1, 5000, 1 ) );
+        // 1 m in 10 ms is 100 m/s, the Hampel window is not full yet
+        assertFalse( filter.accept( 1, 6000, 1 + STEP ) );
+        assertEquals( 1, filter.getSpeedRejectionCount() );
+        // after a second 1 m is plausible
+        assertTrue( filter.accept( 1, 6000, 1 + 1000000000L ) );
+    }
+
+    @Test
+    public void anchors_areFilteredSeparately() {
+        DecawaveRangeFilter filter = new DecawaveRangeFilter();
+        assertTrue( filter.accept( 1, 5000, 1 ) );
+        assertTrue( filter.accept( 2, 9000, 1 + STEP ) );
+        assertFalse( filter.accept( -1, 1000, 1 ) );
+        assertFalse( filter.accept( DecawaveAnchors.MAX_ANCHORS, 1000, 1 ) );
+        assertEquals( 0, filter.getRejectedCount( 1 ) );
+    }
+
+    @Test
+    public void reset_forgetsHistory() {
+        DecawaveRangeFilter filter = new DecawaveRangeFilter();
+        long timestamp = 1;
+        for ( int k = 0; k < 10; k++ )
+            filter.accept( 1, 5000, timestamp += STEP );
+        filter.reset();
+        assertTrue( filter.accept( 1, 20000, timestamp + STEP ) );
+        assertEquals( 11, filter.getAcceptedCount() );
+    }
+
+}
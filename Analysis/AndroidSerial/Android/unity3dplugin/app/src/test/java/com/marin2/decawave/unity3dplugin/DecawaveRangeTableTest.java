@@ -0,0 +1,115 @@
+package com.marin2.decawave.unity3dplugin;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the seqlock table of the latest ranges
+ */
+public class DecawaveRangeTableTest {
+
+    private static final int MAX = DecawaveRangeTable.MAX_ANCHORS;
+
+    @Test
+    public void put_isReadBack() {
+        DecawaveRangeTable table = new DecawaveRangeTable();
+        long[] out = new long[2];
+        assertEquals( DecawaveRangeTable.READ_NO_RANGE, table.get( 3, out ) );
+        table.put( 3, 1500, 42 );
+        table.put( 3, 1600, 43 );
+        assertEquals( DecawaveRangeTable.READ_OK, table.get( 3, out ) );
+        assertEquals( 1600, out[0] );
+        assertEquals( 43, out[1] );
+    }
+
+    @Test
+    public void outOfRangeAnchor_isIgnored() {
+        DecawaveRangeTable table = new DecawaveRangeTable();
+        long version = table.getVersion();
+        table.put( -1, 1, 1 );
+        table.put( MAX, 1, 1 );
+        assertEquals( version, table.getVersion() );
+        assertEquals( DecawaveRangeTable.READ_NO_RANGE, table.get( MAX, new long[2] ) );
+    }
+
+    @Test
+    public void snapshot_copiesEveryAnchor() {
+        DecawaveRangeTable table = new DecawaveRangeTable();
+        table.put( 0, 100, 10 );
+        table.put( 255, 200, 20 );
+        int[] distances = new int[MAX];
+        long[] timestamps = new long[MAX];
+        long version = table.snapshot( distances, timestamps );
+        assertEquals( table.getVersion(), version );
+        assertEquals( 100, distances[0] );
+        assertEquals( 10, timestamps[0] );
+        assertEquals( 200, distances[255] );
+        assertEquals( 20, timestamps[255] );
+        assertEquals( 0, timestamps[1] );
+    }
+
+    @Test
+    public void clear_removesRangesAndChangesVersion() {
+        DecawaveRangeTable table = new DecawaveRangeTable();
+        table.put( 7, 700, 70 );
+        long version = table.getVersion();
+        table.clear();
+        assertNotEquals( version, table.getVersion() );
+        assertEquals( DecawaveRangeTable.READ_NO_RANGE, table.get( 7, new long[2] ) );
+    }
+
+    @Test
+    public void readDuringWrite_isBusy() {
+        DecawaveRangeTable table = new DecawaveRangeTable();
+        table.put( 3, 1500, 42 );
+        long[] out = new long[] { -1, -1 };
+        synchronized ( table ) {
+            // a writer stopped in the middle of a write
+            long version = table.beginWrite();
+            assertEquals( DecawaveRangeTable.READ_BUSY, table.get( 3, out ) );
+            assertEquals( DecawaveRangeTable.READ_BUSY, table.get( 4, out ) );
+            assertEquals( -1, table.snapshot( new int[MAX], new long[MAX] ) );
+            table.endWrite( version );
+        }
+        assertArrayEquals( new long[] { -1, -1 }, out );
+        assertEquals( DecawaveRangeTable.READ_OK, table.get( 3, out ) );
+        assertEquals( 1500, out[0] );
+    }
+
+    @Test
+    public void concurrentWrites_neverTearSnapshots() throws InterruptedException {
+        final DecawaveRangeTable table = new DecawaveRangeTable();
+        final AtomicBoolean writing = new AtomicBoolean( true );
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                // every entry holds its timestamp as its distance, a torn read shows as a mismatch
+                for ( int round = 1; writing.get(); round++ ) {
+                    for ( int anchorId = 0; anchorId < MAX; anchorId++ )
+                        table.put( anchorId, round, round );
+                }
+            }
+        };
+        writer.start();
+        int[] distances = new int[MAX];
+        long[] timestamps = new long[MAX];
+        int consistent = 0;
+        long deadline = System.currentTimeMillis() + 200;
+        while ( System.currentTimeMillis() < deadline ) {
+            if ( table.snapshot( distances, timestamps ) < 0 )
+                continue;
+            consistent++;
+            for ( int anchorId = 0; anchorId < MAX; anchorId++ ) {
+                if ( timestamps[anchorId] != 0 )
+                    assertEquals( timestamps[anchorId], distances[anchorId] );
+            }
+        }
+        writing.set( false );
+        writer.join();
+        assertTrue( consistent > 0 );
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.marin2.decawave.unity3dplugin;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the position solver with exact ranges
+ */
+public class DecawaveSolverTest {
+
+    private static final long TIMEOUT = 5000;
+    private static final double[][] ANCHORS = { { 0, 0, 0 }, { 10, 0, 0.5 }, { 0, 8, 2.5 }, { 10, 8, 0.2 }, { 5, -1, 3 } };
+
+    private DecawaveAnchors anchors;
+    private DecawaveSolver solver;
+
+    @Before
+    public void setUp() {
+        anchors = new DecawaveAnchors();
+        solver = new DecawaveSolver( anchors );
+        solver.start();
+    }
+
+    @After
+    public void tearDown() {
+        assertTrue( solver.stop( TIMEOUT ) );
+    }
+
+    private static int range( double[] anchor, double x, double y, double z ) {
+        double dx = x - anchor[0];
+        double dy = y - anchor[1];
+        double dz = z - anchor[2];
+        return (int)Math.round( Math.sqrt( dx * dx + dy * dy + dz * dz ) * 1000 );
+    }
+
+    private long waitForPosition( int receiverId, long after, double[] out ) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        long timestamp;
+        while ( ( timestamp = solver.getPosition( receiverId, out ) ) == 0 || timestamp - after < 0 ) {
+            if ( System.currentTimeMillis() > deadline )
+                fail( "no position" );
+            Thread.sleep( 1 );
+        }
+        return timestamp;
+    }
+
+    @Test
+    public void exactRanges_solvePosition() throws InterruptedException {
+        for ( int i = 0; i < ANCHORS.length; i++ )
+            anchors.setPosition( i + 1, ANCHORS[i][0], ANCHORS[i][1], ANCHORS[i][2] );
+        long now = System.nanoTime();
+        for ( int i = 0; i < ANCHORS.length; i++ )
+            solver.onRange( 2, i + 1, range( ANCHORS[i], 3.2, 4.1, 1.3 ), now );
+        double[] out = new double[4];
+        waitForPosition( 2, now, out );
+        assertEquals( 3.2, out[0], 0.01 );
+        assertEquals( 4.1, out[1], 0.01 );
+        assertEquals( 1.3, out[2], 0.01 );
+        assertEquals( 0, out[3], 0.01 );
+        assertEquals( ANCHORS.length, solver.getAnchorCount( 2 ) );
+    }
+
+    @Test
+    public void fixedHeight_solvesWithThreeAnchors() throws InterruptedException {
+        for ( int i = 0; i < 3; i++ )
+            anchors.setPosition( i + 1, ANCHORS[i][0], ANCHORS[i][1], 0 );
+        solver.setFixedHeight( true, 1.3 );
+        long now = System.nanoTime();
+        for ( int i = 0; i < 3; i++ )
+            solver.onRange( 0, i + 1, range( new double[] { ANCHORS[i][0], ANCHORS[i][1], 0 }, 3.2, 4.1, 1.3 ), now );
+        double[] out = new double[4];
+        waitForPosition( 0, now, out );
+        assertEquals( 3.2, out[0], 0.01 );
+        assertEquals( 4.1, out[1], 0.01 );
+        assertEquals( 1.3, out[2], 1e-9 );
+    }
+
+    @Test
+    public void tooFewAnchors_giveNoPosition() throws InterruptedException {
+        anchors.setPosition( 1, 0, 0, 0 );
+        anchors.setPosition( 2, 10, 0, 0 );
+        long now = System.nanoTime();
+        solver.onRange( 1, 1, 5000, now );
+        solver.onRange( 1, 2, 5000, now );
+        // a range of an unconfigured anchor does not count either
+        solver.onRange( 1, 3, 5000, now );
+        Thread.sleep( 50 );
+        assertEquals( 0, solver.getPosition( 1, new double[4] ) );
+    }
+
+    @Test
+    public void clear_forgetsPosition() throws InterruptedException {
+        for ( int i = 0; i < ANCHORS.length; i++ )
+            anchors.setPosition( i + 1, ANCHORS[i][0], ANCHORS[i][1], ANCHORS[i][2] );
+        long now = System.nanoTime();
+        for ( int i = 0; i < ANCHORS.length; i++ )
+            solver.onRange( 5, i + 1, range( ANCHORS[i], 1, 1, 1 ), now );
+        waitForPosition( 5, now, new double[4] );
+        solver.clear( 5 );
+        assertEquals( 0, solver.getPosition( 5, new double[4] ) );
+        assertEquals( 0, solver.getAnchorCount( 5 ) );
+    }
+
+    @Test
+    public void outOfRangeIds_areCounted() {
+        solver.onRange( DecawaveSolver.MAX_RECEIVERS, 1, 1000, System.nanoTime() );
+        solver.onRange( -1, 1, 1000, System.nanoTime() );
+        solver.onRange( 0, DecawaveAnchors.MAX_ANCHORS, 1000, System.nanoTime() );
+        assertEquals( 3, solver.getDroppedRangeCount() );
+        assertNull( solver.getRangeTable( DecawaveSolver.MAX_RECEIVERS ) );
+    }
+
+}